@@ -56,8 +56,12 @@ public class Main {
 			if (att instanceof FileAttachment) {
 				final FileAttachment fileAtt = (FileAttachment) att;
 				final FileOutputStream fos = new FileOutputStream(fileAtt.getFilename());
-				fos.write(fileAtt.getData());
-				fos.close();
+				try {
+					// the data is streamed from the .msg file
+					fileAtt.transferTo(fos.getChannel());
+				} finally {
+					fos.close();
+				}
 				LOGGER.info(fileAtt.getMimeTag() + " File extracted from msg -> " + fileAtt.getFilename());
 			}
 		}
@@ -109,20 +113,25 @@ public class Main {
 		try {
 			output.add("STARTS");
 			final MsgParser msgp = new MsgParser();
+			msgp.setLazy(true);
 			final Handler[] handlers = LOGGER.getLogger("").getHandlers();
 			for (final Handler handler : handlers) {
 				handler.setLevel(Level.INFO);
 			}
 			final File testFile = new File(fileName);
 			final Message msg = msgp.parseMsg(testFile);
-			output.add("---------------------------------------");
-			output.add("From: " + msg.getFromName());
-			output.add("To: " + msg.getToName());
-			output.add("Subject: " + msg.getSubject());
-			output.add("Attachments: " + msg.getAttachments().size());
-			generateFiles(msg.getAttachments());
-			output.add("Body: \n" + msg.getBodyText());
-			output.add("ENDS");
+			try {
+				output.add("---------------------------------------");
+				output.add("From: " + msg.getFromName());
+				output.add("To: " + msg.getToName());
+				output.add("Subject: " + msg.getSubject());
+				output.add("Attachments: " + msg.getAttachments().size());
+				generateFiles(msg.getAttachments());
+				output.add("Body: \n" + msg.getBodyText());
+				output.add("ENDS");
+			} finally {
+				msg.close();
+			}
 		} catch (final Exception e) {
 			output.add("ERROR " + e.getMessage());
 		}
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Allows parsing to be stopped from another thread or after a deadline (see
+ * {@link MsgParser#parseMsg(java.io.File, CancellationToken)}). Once the token
+ * has been cancelled or its deadline has passed, the parser, the RTF
+ * decompression and the RTF to HTML conversion throw a
+ * {@link CancellationException} at their next check.
+ *
+ * @author inaki
+ */
+public class CancellationToken {
+
+	/**
+	 * The number of characters or bytes read between two checks of
+	 * {@link #guard(CharSequence)} and {@link #guard(InputStream)}.
+	 */
+	protected static final int checkInterval = 4096;
+
+	/**
+	 * Creates a token that is cancelled after the given time.
+	 *
+	 * @param timeout
+	 *            The time until the deadline.
+	 * @param unit
+	 *            The unit of the timeout.
+	 * @return The new token.
+	 */
+	public static CancellationToken withTimeout(long timeout, TimeUnit unit) {
+		return new CancellationToken(System.nanoTime() + unit.toNanos(timeout));
+	}
+
+	private final long deadline;
+	private final boolean hasDeadline;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * Creates a token without a deadline, which is only cancelled by
+	 * {@link #cancel()}.
+	 */
+	public CancellationToken() {
+		this.deadline = 0;
+		this.hasDeadline = false;
+	}
+
+	/**
+	 * @param deadline
+	 *            The deadline as a value of {@link System#nanoTime()}.
+	 */
+	protected CancellationToken(long deadline) {
+		this.deadline = deadline;
+		this.hasDeadline = true;
+	}
+
+	/**
+	 * Cancels parsing, may be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Wraps a text, e.g. one about to be matched by a regular expression, so
+	 * this token is checked while the text is read.
+	 *
+	 * @param text
+	 *            The text to be wrapped.
+	 * @return The text, throwing a {@link CancellationException} from
+	 *         {@link CharSequence#charAt(int)} once this token is cancelled.
+	 */
+	public CharSequence guard(CharSequence text) {
+		return new GuardedCharSequence(text, this);
+	}
+
+	/**
+	 * Wraps an input stream so this token is checked while it is read.
+	 *
+	 * @param in
+	 *            The stream to be wrapped.
+	 * @return The stream, throwing a {@link CancellationException} once this
+	 *         token is cancelled.
+	 */
+	public InputStream guard(InputStream in) {
+		return new GuardedInputStream(in, this);
+	}
+
+	/**
+	 * @return Whether {@link #cancel()} has been called or the deadline has
+	 *         passed.
+	 */
+	public boolean isCancelled() {
+		return cancelled || hasDeadline && System.nanoTime() - deadline > 0;
+	}
+
+	/**
+	 * @throws CancellationException
+	 *             Thrown if this token has been cancelled or its deadline has
+	 *             passed.
+	 */
+	public void throwIfCancelled() throws CancellationException {
+		if (cancelled) {
+			throw new CancellationException("Parsing has been cancelled");
+		}
+		if (hasDeadline && System.nanoTime() - deadline > 0) {
+			throw new CancellationException("Parsing deadline exceeded");
+		}
+	}
+
+	/**
+	 * A {@link CharSequence} checking a token every {@link #checkInterval}
+	 * characters, so regular expressions cannot run past it.
+	 */
+	private static final class GuardedCharSequence implements CharSequence {
+
+		private final CharSequence text;
+		private final CancellationToken token;
+		private int reads = 0;
+
+		private GuardedCharSequence(CharSequence text, CancellationToken token) {
+			this.text = text;
+			this.token = token;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (++reads == checkInterval) {
+				reads = 0;
+				token.throwIfCancelled();
+			}
+			return text.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new GuardedCharSequence(text.subSequence(start, end), token);
+		}
+
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+	}
+
+	/**
+	 * An {@link InputStream} checking a token every {@link #checkInterval}
+	 * bytes.
+	 */
+	private static final class GuardedInputStream extends FilterInputStream {
+
+		private final CancellationToken token;
+		private long unchecked = 0;
+
+		private GuardedInputStream(InputStream in, CancellationToken token) {
+			super(in);
+			this.token = token;
+		}
+
+		private void count(long read) {
+			unchecked += Math.max(read, 1);
+			if (unchecked >= checkInterval) {
+				unchecked = 0;
+				token.throwIfCancelled();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			count(1);
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			count(len);
+			return super.read(b, off, len);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			count(n);
+			return super.skip(n);
+		}
+	}
+}
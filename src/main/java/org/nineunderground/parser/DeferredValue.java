@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import org.nineunderground.parser.cfb.CompoundFile;
+
+/**
+ * The value of a property whose stream has not been read yet. Only the
+ * location and the size of the stream are recorded while parsing, the stream
+ * is read and decoded when the value is requested for the first time. This
+ * requires the compound file to be still open at that time.
+ *
+ * @author inaki
+ */
+public class DeferredValue {
+
+	private CompoundFile cf;
+	private final int entry;
+	private final int mapiType;
+	private final long size;
+	private final Charset charset;
+	private Object value = null;
+
+	/**
+	 * @param cf
+	 *            The compound file holding the stream.
+	 * @param entry
+	 *            The index of the stream.
+	 * @param mapiType
+	 *            The MAPI type of the property.
+	 * @param size
+	 *            The size of the stream in bytes.
+	 */
+	public DeferredValue(CompoundFile cf, int entry, int mapiType, long size) {
+		this(cf, entry, mapiType, size, null);
+	}
+
+	/**
+	 * @param cf
+	 *            The compound file holding the stream.
+	 * @param entry
+	 *            The index of the stream.
+	 * @param mapiType
+	 *            The MAPI type of the property.
+	 * @param size
+	 *            The size of the stream in bytes.
+	 * @param charset
+	 *            The charset of an 8 bit string or null for ISO-8859-1.
+	 */
+	public DeferredValue(CompoundFile cf, int entry, int mapiType, long size, Charset charset) {
+		this.cf = cf;
+		this.entry = entry;
+		this.mapiType = mapiType;
+		this.size = size;
+		this.charset = charset;
+	}
+
+	/**
+	 * Returns the given value itself or, if it is a {@link DeferredValue}, the
+	 * decoded value. Binary values that are views of a memory mapped file are
+	 * copied, so the returned value stays valid once the file is closed.
+	 * {@link SpilledValue}s do not depend on the .msg file and are returned
+	 * as they are.
+	 *
+	 * @param value
+	 *            The value to be detached.
+	 * @return The detached value.
+	 */
+	public static Object detach(Object value) {
+		if (value instanceof SpilledValue) {
+			return value;
+		}
+		final Object resolved = resolve(value);
+		if (resolved instanceof ByteBuffer && ((ByteBuffer) resolved).isDirect()) {
+			final ByteBuffer source = (ByteBuffer) resolved;
+			final ByteBuffer copy = ByteBuffer.allocate(source.remaining());
+			copy.put(source.duplicate());
+			copy.flip();
+			return copy.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		}
+		if (resolved instanceof ByteBuffer[]) {
+			final ByteBuffer[] buffers = ((ByteBuffer[]) resolved).clone();
+			for (int i = 0; i < buffers.length; i++) {
+				buffers[i] = (ByteBuffer) detach(buffers[i]);
+			}
+			return buffers;
+		}
+		return resolved;
+	}
+
+	/**
+	 * Reads and decodes the stream, if this has not been done before.
+	 *
+	 * @return The decoded value (see {@link MapiCodec}).
+	 * @throws UncheckedIOException
+	 *             Thrown if the stream could not be read, e.g. because the
+	 *             compound file has already been closed.
+	 */
+	public Object get() throws UncheckedIOException {
+		if (cf != null) {
+			try {
+				value = MapiCodec.decode(cf.getStreamBuffer(entry), mapiType, charset);
+			} catch (final IOException e) {
+				throw new UncheckedIOException("Could not read deferred property value", e);
+			}
+			// the compound file is no longer referenced once the value has
+			// been decoded
+			cf = null;
+		}
+		return value;
+	}
+
+	/**
+	 * @return The MAPI type of the property.
+	 */
+	public int getMapiType() {
+		return mapiType;
+	}
+
+	/**
+	 * @return The size of the stream in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return Whether the stream has already been read.
+	 */
+	public boolean isResolved() {
+		return cf == null;
+	}
+
+	/**
+	 * Opens the stream for reading its raw content without decoding (and
+	 * keeping) the value. This is meant for large binary values that are
+	 * processed only once.
+	 *
+	 * @return An input stream reading the content of the stream.
+	 * @throws IOException
+	 *             Thrown if the value has already been decoded or the stream
+	 *             could not be opened.
+	 */
+	public InputStream openStream() throws IOException {
+		if (cf == null) {
+			throw new IOException("Deferred value has already been read");
+		}
+		return cf.openStream(entry);
+	}
+
+	/**
+	 * Returns the given value itself or, if it is a {@link DeferredValue} or
+	 * a {@link SpilledValue}, the decoded value.
+	 *
+	 * @param value
+	 *            The value to be resolved.
+	 * @return The resolved value.
+	 * @throws UncheckedIOException
+	 *             Thrown if a deferred value could not be read.
+	 */
+	public static Object resolve(Object value) throws UncheckedIOException {
+		if (value instanceof SpilledValue) {
+			return ((SpilledValue) value).get();
+		}
+		return value instanceof DeferredValue ? ((DeferredValue) value).get() : value;
+	}
+
+	@Override
+	public String toString() {
+		return isResolved() ? String.valueOf(value) : "[deferred, " + size + " bytes]";
+	}
+}
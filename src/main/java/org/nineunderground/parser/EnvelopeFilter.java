@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * A filter on the envelope of a message (see
+ * {@link MsgParser#setFilter(Predicate)}). A message is accepted if it meets
+ * all conditions that have been set, a message without the field a condition
+ * refers to is rejected.
+ *
+ * @author inaki
+ */
+public class EnvelopeFilter implements Predicate<Message> {
+
+	private String messageClass = null;
+	private final List<String> senderDomains = new ArrayList<>();
+	private Date from = null;
+	private Date to = null;
+	private String subjectText = null;
+
+	/**
+	 * Accepts messages sent (or created) within the given range only.
+	 *
+	 * @param from
+	 *            The first date accepted or null.
+	 * @param to
+	 *            The first date no longer accepted or null.
+	 * @return This filter.
+	 */
+	public EnvelopeFilter dateRange(Date from, Date to) {
+		this.from = from;
+		this.to = to;
+		return this;
+	}
+
+	/**
+	 * Accepts messages of the given class and its subclasses only, e.g.
+	 * "IPM.Note" accepts "IPM.Note.SMIME" as well. Case is ignored.
+	 *
+	 * @param messageClass
+	 *            The message class.
+	 * @return This filter.
+	 */
+	public EnvelopeFilter messageClass(String messageClass) {
+		this.messageClass = messageClass.toLowerCase(Locale.ROOT);
+		return this;
+	}
+
+	/**
+	 * Accepts messages sent from the given domains and their subdomains only.
+	 * Case is ignored.
+	 *
+	 * @param domains
+	 *            The domains of the sender (e.g., "example.com").
+	 * @return This filter.
+	 */
+	public EnvelopeFilter senderDomain(String... domains) {
+		for (final String domain : domains) {
+			senderDomains.add(domain.toLowerCase(Locale.ROOT));
+		}
+		return this;
+	}
+
+	/**
+	 * Accepts messages whose subject contains the given text only. Case is
+	 * ignored.
+	 *
+	 * @param text
+	 *            The text to be searched for.
+	 * @return This filter.
+	 */
+	public EnvelopeFilter subjectContains(String text) {
+		this.subjectText = text.toLowerCase(Locale.ROOT);
+		return this;
+	}
+
+	@Override
+	public boolean test(Message msg) {
+		if (messageClass != null) {
+			final String value = msg.getMessageClass();
+			if (value == null || !(value.toLowerCase(Locale.ROOT) + ".").startsWith(messageClass + ".")) {
+				return false;
+			}
+		}
+		if (!senderDomains.isEmpty() && !isSenderDomain(msg.getFromEmail())) {
+			return false;
+		}
+		if (from != null || to != null) {
+			final Date date = msg.getDate();
+			if (date == null || from != null && date.before(from) || to != null && !date.before(to)) {
+				return false;
+			}
+		}
+		if (subjectText != null) {
+			final String subject = msg.getSubject();
+			if (subject == null || !subject.toLowerCase(Locale.ROOT).contains(subjectText)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isSenderDomain(String email) {
+		if (email == null || email.indexOf('@') < 0) {
+			return false;
+		}
+		final String domain = email.substring(email.lastIndexOf('@') + 1).trim().toLowerCase(Locale.ROOT);
+		for (final String senderDomain : senderDomains) {
+			if (domain.equals(senderDomain) || domain.endsWith("." + senderDomain)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -36,7 +36,9 @@ package org.nineunderground.parser;
 import org.apache.poi.poifs.filesystem.DocumentEntry;
 
 /**
- * The Class FieldInformation.
+ * The Class FieldInformation. Instances are immutable, since those returned
+ * by {@link MsgParser#analyzeDocumentEntry(String)} are shared between all
+ * entries (and messages) with the same name on all threads.
  *
  * @author inaki
  *
@@ -54,24 +56,56 @@ public class FieldInformation {
 	 */
 	public static final int UNKNOWN_MAPITYPE = -1;
 
+	/**
+	 * The default value for the {@link #tag}.
+	 */
+	public static final int UNKNOWN_TAG = -1;
+
+	/**
+	 * A shared {@link FieldInformation} object for entries that are not
+	 * interesting fields.
+	 */
+	public static final FieldInformation UNKNOWN_FIELD = new FieldInformation();
+
 	/**
 	 * The class of the {@link DocumentEntry}.
 	 */
-	protected String clazz = UNKNOWN;
+	protected final String clazz;
 	/**
 	 * The type of the {@link DocumentEntry}.
 	 */
-	protected String type = UNKNOWN;
+	protected final String type;
 
 	/**
 	 * The mapi type of the {@link DocumentEntry}.
 	 */
-	protected int mapiType = UNKNOWN_MAPITYPE;
+	protected final int mapiType;
+
+	/**
+	 * The property tag of the {@link DocumentEntry}, i.e., the class in the
+	 * upper and the mapi type in the lower 16 bits.
+	 */
+	protected final int tag;
 
 	/**
 	 * Empty constructor that uses the default values.
 	 */
 	public FieldInformation() {
+		this(UNKNOWN, UNKNOWN, UNKNOWN_MAPITYPE);
+	}
+
+	/**
+	 * Constructor that sets the class and type properties from a property tag.
+	 *
+	 * @param tag
+	 *            The property tag, i.e., the class in the upper and the mapi
+	 *            type in the lower 16 bits.
+	 */
+	public FieldInformation(int tag) {
+		this.clazz = toClazz(tag >>> 16);
+		this.type = UNKNOWN;
+		this.mapiType = tag & 0xffff;
+		this.tag = tag;
 	}
 
 	/**
@@ -84,8 +118,7 @@ public class FieldInformation {
 	 *            {@link MAPIProp}).
 	 */
 	public FieldInformation(String clazz, int mapiType) {
-		this.setClazz(clazz);
-		this.setMapiType(mapiType);
+		this(clazz, UNKNOWN, mapiType);
 	}
 
 	/**
@@ -98,8 +131,14 @@ public class FieldInformation {
 	 */
 	@Deprecated
 	public FieldInformation(String clazz, String type) {
-		this.setClazz(clazz);
-		this.setType(type);
+		this(clazz, type, UNKNOWN_MAPITYPE);
+	}
+
+	private FieldInformation(String clazz, String type, int mapiType) {
+		this.clazz = clazz;
+		this.type = type;
+		this.mapiType = mapiType;
+		this.tag = toTag(clazz, mapiType);
 	}
 
 	/**
@@ -117,34 +156,46 @@ public class FieldInformation {
 	}
 
 	/**
-	 * @return the type
+	 * @return the tag, i.e., the class in the upper and the mapi type in the
+	 *         lower 16 bits or {@link #UNKNOWN_TAG}
 	 */
-	public String getType() {
-		return type;
+	public int getTag() {
+		return tag;
 	}
 
 	/**
-	 * @param clazz
-	 *            the clazz to set
+	 * @return the type
 	 */
-	public void setClazz(String clazz) {
-		this.clazz = clazz;
+	public String getType() {
+		return type;
 	}
 
 	/**
-	 * @param mapiType
-	 *            the mapiType to set
+	 * Creates the 4 digit, lower case class of a property as it is used in
+	 * the names of the property streams.
+	 *
+	 * @param propertyId
+	 *            The id of the property.
+	 * @return The class of the property, e.g. "0e07".
 	 */
-	public void setMapiType(int mapiType) {
-		this.mapiType = mapiType;
+	public static String toClazz(int propertyId) {
+		final char[] clazz = new char[4];
+		for (int i = 3; i >= 0; i--) {
+			clazz[i] = Character.forDigit(propertyId & 0xf, 16);
+			propertyId >>>= 4;
+		}
+		return new String(clazz);
 	}
 
-	/**
-	 * @param type
-	 *            the type to set
-	 */
-	public void setType(String type) {
-		this.type = type;
+	private static int toTag(String clazz, int mapiType) {
+		if (clazz != null && mapiType != UNKNOWN_MAPITYPE) {
+			try {
+				return Integer.parseInt(clazz, 16) << 16 | mapiType & 0xffff;
+			} catch (final NumberFormatException e) {
+				// the class is not a property id
+			}
+		}
+		return UNKNOWN_TAG;
 	}
 
 }
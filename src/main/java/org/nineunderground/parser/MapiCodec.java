@@ -0,0 +1,394 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Decodes the values of MAPI properties into Java objects. Fixed size values
+ * are decoded directly from the little endian buffer they are stored in,
+ * without copying them into an array first.
+ *
+ * <table summary="MAPI types and their Java representation">
+ * <tr><td>0x0002 SHORT</td><td>Short</td></tr>
+ * <tr><td>0x0003 INT, 0x000a ERROR</td><td>Integer</td></tr>
+ * <tr><td>0x0004 FLOAT</td><td>Float</td></tr>
+ * <tr><td>0x0005 DOUBLE, 0x0007 APPTIME</td><td>Double</td></tr>
+ * <tr><td>0x0006 CURRENCY, 0x0014 INT8BYTE</td><td>Long</td></tr>
+ * <tr><td>0x000b BOOLEAN</td><td>Boolean</td></tr>
+ * <tr><td>0x001e STRING, 0x001f UNICODE STRING</td><td>String</td></tr>
+ * <tr><td>0x0040 SYSTIME</td><td>Instant</td></tr>
+ * <tr><td>0x0048 CLSID</td><td>UUID</td></tr>
+ * <tr><td>0x0102 BINARY</td><td>ByteBuffer</td></tr>
+ * </table>
+ * <p>
+ * Multi-valued properties (the type combined with {@link #MV_FLAG}) are
+ * decoded into arrays: short[], int[], float[], double[] and long[] for the
+ * numeric types, Instant[], UUID[], String[] and ByteBuffer[] for the others.
+ *
+ * @author inaki
+ */
+public class MapiCodec {
+
+	protected static final Logger logger = Logger.getLogger(MapiCodec.class.getName());
+
+	/**
+	 * The flag that is combined with the type of a multi-valued property.
+	 */
+	public static final int MV_FLAG = 0x1000;
+
+	/**
+	 * The number of seconds between January 1, 1601 and January 1, 1970.
+	 */
+	private static final long FILETIME_EPOCH_OFFSET = 11644473600L;
+	/**
+	 * The number of FILETIME intervals of 100 nanoseconds per second.
+	 */
+	private static final long FILETIME_TICKS_PER_SECOND = 10000000L;
+
+	private MapiCodec() {
+	}
+
+	/**
+	 * Copies binary values out of their buffers, so they can be handed out
+	 * without referring to the buffer a message has been parsed from.
+	 *
+	 * @param value
+	 *            A decoded value (see {@link #decode(ByteBuffer, int)}).
+	 * @return A byte array for a {@link ByteBuffer}, an array of byte arrays
+	 *         for a {@link ByteBuffer} array and the value itself otherwise.
+	 */
+	public static Object copyBuffers(Object value) {
+		if (value instanceof ByteBuffer) {
+			final ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return bytes;
+		}
+		if (value instanceof ByteBuffer[]) {
+			final ByteBuffer[] buffers = (ByteBuffer[]) value;
+			final byte[][] arrays = new byte[buffers.length][];
+			for (int i = 0; i < buffers.length; i++) {
+				arrays[i] = (byte[]) copyBuffers(buffers[i]);
+			}
+			return arrays;
+		}
+		return value;
+	}
+
+	/**
+	 * Decodes the value of a property stream.
+	 *
+	 * @param buffer
+	 *            The content of the stream, read from its position up to its
+	 *            limit. The buffer is not modified.
+	 * @param mapiType
+	 *            The MAPI type of the property.
+	 * @return The object representing the value or null if the type is not
+	 *         supported or the stream is too short.
+	 */
+	public static Object decode(ByteBuffer buffer, int mapiType) {
+		return decode(buffer, mapiType, null);
+	}
+
+	/**
+	 * Decodes the value of a property stream, 8 bit strings are decoded with
+	 * the charset of the code page of the message.
+	 *
+	 * @param buffer
+	 *            The content of the stream, read from its position up to its
+	 *            limit. The buffer is not modified.
+	 * @param mapiType
+	 *            The MAPI type of the property.
+	 * @param string8Charset
+	 *            The charset of 8 bit strings or null for ISO-8859-1.
+	 * @return The object representing the value or null if the type is not
+	 *         supported or the stream is too short.
+	 */
+	public static Object decode(ByteBuffer buffer, int mapiType, Charset string8Charset) {
+		final ByteBuffer le = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		switch (mapiType) {
+			case 0x1e : // STRING
+				return decodeString8(le, string8Charset);
+			case 0x1f : // UNICODE STRING
+				return decodeUnicode(le);
+			case 0x48 : // CLSID
+				return le.remaining() < 16 ? null : decodeGuid(le, le.position());
+			case 0x102 : // BINARY
+				return le.slice().order(ByteOrder.LITTLE_ENDIAN);
+			default :
+				if (getFixedSize(mapiType) <= 0 || le.remaining() < getFixedSize(mapiType)) {
+					logger.fine("Unknown field type " + mapiType);
+					return null;
+				}
+				return decodeFixed(le, le.position(), mapiType);
+		}
+	}
+
+	/**
+	 * Decodes the value of a fixed size property.
+	 *
+	 * @param buffer
+	 *            A little endian buffer holding the value.
+	 * @param offset
+	 *            The absolute offset of the value within the buffer.
+	 * @param mapiType
+	 *            The MAPI type of the property.
+	 * @return The object representing the value or null if the type is not a
+	 *         fixed size type.
+	 */
+	public static Object decodeFixed(ByteBuffer buffer, int offset, int mapiType) {
+		switch (mapiType) {
+			case 0x2 : // SHORT
+				return buffer.getShort(offset);
+			case 0x3 : // INT
+			case 0xa : // ERROR
+				return buffer.getInt(offset);
+			case 0x4 : // FLOAT
+				return buffer.getFloat(offset);
+			case 0x5 : // DOUBLE
+			case 0x7 : // APPTIME
+				return buffer.getDouble(offset);
+			case 0x6 : // CURRENCY
+			case 0x14 : // INT8BYTE
+				return buffer.getLong(offset);
+			case 0xb : // BOOLEAN
+				return buffer.get(offset) != 0;
+			case 0x40 : // SYSTIME
+				return toInstant(buffer.getLong(offset));
+			default :
+				return null;
+		}
+	}
+
+	/**
+	 * Decodes a GUID, which is stored as a little endian int and two little
+	 * endian shorts followed by 8 bytes.
+	 *
+	 * @param buffer
+	 *            A little endian buffer holding the GUID.
+	 * @param offset
+	 *            The absolute offset of the GUID within the buffer.
+	 * @return The GUID.
+	 */
+	public static UUID decodeGuid(ByteBuffer buffer, int offset) {
+		final long msb = (buffer.getInt(offset) & 0xffffffffL) << 32 | (buffer.getShort(offset + 4) & 0xffffL) << 16
+				| buffer.getShort(offset + 6) & 0xffffL;
+		long lsb = 0;
+		for (int i = 8; i < 16; i++) {
+			lsb = lsb << 8 | buffer.get(offset + i) & 0xff;
+		}
+		return new UUID(msb, lsb);
+	}
+
+	/**
+	 * Decodes the values of a multi-valued property of a fixed size type,
+	 * which are stored one after another in a single stream.
+	 *
+	 * @param buffer
+	 *            The content of the stream, read from its position up to its
+	 *            limit. The buffer is not modified.
+	 * @param mapiType
+	 *            The MAPI type of the property, including the
+	 *            {@link #MV_FLAG}.
+	 * @return The array holding the values or null if the type is not a
+	 *         multi-valued fixed size type.
+	 */
+	public static Object decodeMultiValued(ByteBuffer buffer, int mapiType) {
+		final ByteBuffer le = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		switch (mapiType) {
+			case MV_FLAG | 0x2 : // SHORT
+				final short[] shorts = new short[le.remaining() / 2];
+				le.asShortBuffer().get(shorts);
+				return shorts;
+			case MV_FLAG | 0x3 : // INT
+				final int[] ints = new int[le.remaining() / 4];
+				le.asIntBuffer().get(ints);
+				return ints;
+			case MV_FLAG | 0x4 : // FLOAT
+				final float[] floats = new float[le.remaining() / 4];
+				le.asFloatBuffer().get(floats);
+				return floats;
+			case MV_FLAG | 0x5 : // DOUBLE
+			case MV_FLAG | 0x7 : // APPTIME
+				final double[] doubles = new double[le.remaining() / 8];
+				le.asDoubleBuffer().get(doubles);
+				return doubles;
+			case MV_FLAG | 0x6 : // CURRENCY
+			case MV_FLAG | 0x14 : // INT8BYTE
+				final long[] longs = new long[le.remaining() / 8];
+				le.asLongBuffer().get(longs);
+				return longs;
+			case MV_FLAG | 0x40 : // SYSTIME
+				final Instant[] instants = new Instant[le.remaining() / 8];
+				for (int i = 0; i < instants.length; i++) {
+					instants[i] = toInstant(le.getLong(8 * i));
+				}
+				return instants;
+			case MV_FLAG | 0x48 : // CLSID
+				final UUID[] guids = new UUID[le.remaining() / 16];
+				for (int i = 0; i < guids.length; i++) {
+					guids[i] = decodeGuid(le, 16 * i);
+				}
+				return guids;
+			default :
+				return null;
+		}
+	}
+
+	/**
+	 * Decodes an 8 bit string. The encoding is most probably ISO-8859-1 (not
+	 * pure ASCII).
+	 *
+	 * @param buffer
+	 *            The bytes of the string, read from its position up to its
+	 *            limit.
+	 * @return The string.
+	 */
+	public static String decodeString8(ByteBuffer buffer) {
+		return decodeString8(buffer, null);
+	}
+
+	/**
+	 * Decodes an 8 bit string in the given charset (see
+	 * {@link StringDecoder#getCharset(int)}).
+	 *
+	 * @param buffer
+	 *            The bytes of the string, read from its position up to its
+	 *            limit.
+	 * @param charset
+	 *            The charset of the string or null for ISO-8859-1.
+	 * @return The string.
+	 */
+	public static String decodeString8(ByteBuffer buffer, Charset charset) {
+		return StringDecoder.decode(buffer, charset != null ? charset : StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Decodes a unicode string, which is stored with the low byte followed by
+	 * the high byte of every character.
+	 *
+	 * @param buffer
+	 *            The little endian bytes of the string, read from its position
+	 *            up to its limit.
+	 * @return The string.
+	 */
+	public static String decodeUnicode(ByteBuffer buffer) {
+		// a trailing odd byte is ignored
+		final ByteBuffer characters = buffer.duplicate();
+		characters.limit(characters.position() + (characters.remaining() & ~1));
+		return StringDecoder.decode(characters, StandardCharsets.UTF_16LE);
+	}
+
+	/**
+	 * @param mapiType
+	 *            The MAPI type of a property.
+	 * @return The number of bytes of a fixed size value of this type or 0 if
+	 *         the type has a variable length.
+	 */
+	public static int getFixedSize(int mapiType) {
+		switch (mapiType) {
+			case 0x2 :
+			case 0x3 :
+			case 0x4 :
+			case 0xa :
+			case 0xb :
+				return 4;
+			case 0x5 :
+			case 0x6 :
+			case 0x7 :
+			case 0x14 :
+			case 0x40 :
+				return 8;
+			default :
+				return 0;
+		}
+	}
+
+	/**
+	 * @param mapiType
+	 *            The MAPI type of a string property.
+	 * @return The charset the bytes of a string of this type are decoded
+	 *         with if the message has no code page (see
+	 *         {@link #decodeString8(ByteBuffer)} and
+	 *         {@link #decodeUnicode(ByteBuffer)}) or null if the type is not a
+	 *         string type.
+	 */
+	public static Charset getStringCharset(int mapiType) {
+		switch (mapiType) {
+			case 0x1e : // STRING
+				return StandardCharsets.ISO_8859_1;
+			case 0x1f : // UNICODE STRING
+				return StandardCharsets.UTF_16LE;
+			default :
+				return null;
+		}
+	}
+
+	/**
+	 * @param mapiType
+	 *            The MAPI type of a multi-valued property, including the
+	 *            {@link #MV_FLAG}.
+	 * @return The number of bytes each value takes in the length stream of a
+	 *         multi-valued variable length type, whose values are stored in
+	 *         separate streams, or 0 if the values of the type are stored in
+	 *         a single stream.
+	 */
+	public static int getLengthEntrySize(int mapiType) {
+		switch (mapiType) {
+			case MV_FLAG | 0x1e : // STRING
+			case MV_FLAG | 0x1f : // UNICODE STRING
+				return 4;
+			case MV_FLAG | 0x102 : // BINARY
+				// the length is followed by 4 reserved bytes
+				return 8;
+			default :
+				return 0;
+		}
+	}
+
+	/**
+	 * @param mapiType
+	 *            The MAPI type of a property.
+	 * @return Whether the property is multi-valued.
+	 */
+	public static boolean isMultiValued(int mapiType) {
+		return mapiType != FieldInformation.UNKNOWN_MAPITYPE && (mapiType & MV_FLAG) != 0;
+	}
+
+	/**
+	 * Converts a FILETIME, i.e. the number of 100 nanosecond intervals since
+	 * January 1, 1601, to an {@link Instant}, keeping its full precision.
+	 *
+	 * @param filetime
+	 *            The FILETIME value.
+	 * @return The matching instant.
+	 */
+	public static Instant toInstant(long filetime) {
+		// The following part has been provided by Morten Sørensen (Thanks!)
+		// This parsing has been lifted from the MsgViewer project
+		// https://sourceforge.net/projects/msgviewer/
+		return Instant.ofEpochSecond(Math.floorDiv(filetime, FILETIME_TICKS_PER_SECOND) - FILETIME_EPOCH_OFFSET,
+				Math.floorMod(filetime, FILETIME_TICKS_PER_SECOND) * 100);
+	}
+}
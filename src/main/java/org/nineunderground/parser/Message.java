@@ -34,17 +34,28 @@
 package org.nineunderground.parser;
 
 import java.io.ByteArrayInputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,6 +63,7 @@ import org.apache.poi.hmef.CompressedRTF;
 import org.nineunderground.parser.attachment.Attachment;
 import org.nineunderground.parser.attachment.FileAttachment;
 import org.nineunderground.parser.attachment.MsgAttachment;
+import org.nineunderground.parser.cfb.ByteBufferInputStream;
 import org.nineunderground.parser.rtf.RTF2HTMLConverter;
 import org.nineunderground.parser.rtf.SimpleRTF2HTMLConverter;
 
@@ -61,8 +73,13 @@ import org.nineunderground.parser.rtf.SimpleRTF2HTMLConverter;
  * @author inaki
  *
  */
-public class Message {
+public class Message implements PropertyContainer, Closeable {
 	protected static final Logger logger = Logger.getLogger(Message.class.getName());
+	/**
+	 * The charset binary values are decoded with if a property expects text
+	 * and the message has no internet code page.
+	 */
+	protected static final Charset binaryTextCharset = Charset.forName("CP1252");
 
 	/**
 	 * Parses the message date from the mail headers.
@@ -210,7 +227,7 @@ public class Message {
 	protected String bodyHTML = null;
 
 	/**
-	 * The body in HTML format (converted from RTF)
+	 * The body in HTML format (converted from RTF on first access)
 	 */
 	protected String convertedBodyHTML = null;
 
@@ -238,7 +255,11 @@ public class Message {
 	/**
 	 * Contains all properties that are not covered by the special properties.
 	 */
-	protected Map<Integer, Object> properties = new TreeMap<>();
+	protected PropertyMap properties = new PropertyMap();
+	/**
+	 * The names of the named properties (0x8000 and above) of this message.
+	 */
+	protected NamedPropertyMapping namedProperties = NamedPropertyMapping.EMPTY;
 
 	/**
 	 * A list containing all recipients for this message (which can be set in
@@ -248,6 +269,44 @@ public class Message {
 
 	protected RTF2HTMLConverter rtf2htmlConverter;
 
+	/**
+	 * The .msg file this message has been parsed from in lazy mode, which is
+	 * closed by {@link #close()}.
+	 */
+	protected Closeable source = null;
+
+	/**
+	 * The values of this message, its recipients and attachments that have
+	 * been written to temporary files, which are deleted by {@link #close()}.
+	 */
+	protected List<SpilledValue> spilledValues = new ArrayList<>();
+
+	/**
+	 * Whether parsing stopped early because the budget of the parser has been
+	 * exceeded (see {@link MsgParser#setParseBudget(ParseBudget)}).
+	 */
+	protected boolean truncated = false;
+
+	/**
+	 * The token checked while this message is parsed and its RTF body is
+	 * decompressed or null (see
+	 * {@link MsgParser#parseMsg(java.io.File, CancellationToken)}). It is
+	 * dropped once parsing is over.
+	 */
+	protected CancellationToken cancellationToken = null;
+
+	/**
+	 * The charset of the 8 bit strings, given by the message code page, or
+	 * null if the message has none.
+	 */
+	protected Charset string8Charset = null;
+
+	/**
+	 * The charset of the HTML body and other text stored as binary data,
+	 * given by the internet code page, or null if the message has none.
+	 */
+	protected Charset internetCharset = null;
+
 	public Message() {
 		this.rtf2htmlConverter = new SimpleRTF2HTMLConverter();
 	}
@@ -275,7 +334,9 @@ public class Message {
 	}
 
 	/**
-	 * Checks if the correct recipient's addresses are set.
+	 * Checks if the correct recipient's addresses are set, i.e. moves the
+	 * recipient matching {@link #displayTo} to the front and takes its
+	 * address and name.
 	 */
 	protected void checkToRecipient() {
 		final RecipientEntry toRecipient = getToRecipient();
@@ -287,6 +348,48 @@ public class Message {
 		}
 	}
 
+	/**
+	 * Closes the .msg file this message has been parsed from in lazy mode (see
+	 * {@link MsgParser#setLazy(boolean)}) and deletes the temporary files of
+	 * the values that have been spilled to disk (see
+	 * {@link MsgParser#setSpillThreshold(long)}), including those of attached
+	 * messages. Property values that have not been read before can no longer
+	 * be read afterwards, use {@link #detach()} to read them first.
+	 *
+	 * @throws IOException
+	 *             Thrown if the file could not be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (final SpilledValue spilled : spilledValues) {
+			try {
+				spilled.close();
+			} catch (final IOException e) {
+				logger.log(Level.FINE, "Could not delete " + spilled.getFile(), e);
+			}
+		}
+		spilledValues.clear();
+		for (final Attachment attachment : attachments) {
+			// attached messages that have not been parsed yet hold nothing
+			// to be released
+			if (attachment instanceof MsgAttachment && ((MsgAttachment) attachment).isLoaded()) {
+				((MsgAttachment) attachment).getMessage().close();
+			}
+		}
+		closeSource();
+	}
+
+	/**
+	 * Closes the .msg file this message has been parsed from in lazy mode.
+	 */
+	private void closeSource() throws IOException {
+		if (source != null) {
+			final Closeable toClose = source;
+			source = null;
+			toClose.close();
+		}
+	}
+
 	/**
 	 * Converts a given integer to hex notation without leading '0x'.
 	 *
@@ -298,18 +401,25 @@ public class Message {
 		return String.format("%04x", propCode);
 	}
 
+	/**
+	 * Converts a property value to text. Only the cases of
+	 * {@link #setProperty(MessageProperty)} that need text call this, all
+	 * other values are stored as they are.
+	 *
+	 * @param value
+	 *            The value of a property.
+	 * @return The value as text or null.
+	 */
 	protected String convertValueToString(Object value) {
+		value = DeferredValue.resolve(value);
 		if (value == null)
 			return null;
 		if (value instanceof String)
 			return (String) value;
 		else if (value instanceof byte[]) {
-			try {
-				return new String((byte[]) value, "CP1252");
-			} catch (final UnsupportedEncodingException e) {
-				logger.log(Level.FINE, "Unsupported encoding!", e);
-				return null;
-			}
+			return StringDecoder.decode(ByteBuffer.wrap((byte[]) value), getInternetCharset());
+		} else if (value instanceof ByteBuffer) {
+			return StringDecoder.decode((ByteBuffer) value, getInternetCharset());
 		} else {
 			logger.log(Level.FINE, "Unexpected body class: " + value.getClass().getName());
 			return value.toString();
@@ -346,18 +456,81 @@ public class Message {
 	 * @return A byte array representing the decompressed data.
 	 */
 	protected byte[] decompressRtfBytes(byte[] value) {
+		if (value == null)
+			return null;
+		return decompressRtf(new ByteArrayInputStream(value));
+	}
+
+	/**
+	 * Decompresses compressed RTF data held by a buffer.
+	 *
+	 * @param value
+	 *            Data to be decompressed.
+	 * @return A byte array representing the decompressed data.
+	 */
+	protected byte[] decompressRtfBytes(ByteBuffer value) {
+		if (value == null)
+			return null;
+		return decompressRtf(new ByteBufferInputStream(value));
+	}
+
+	private byte[] decompressRtf(InputStream value) {
 		byte[] decompressed = null;
-		if (value != null) {
-			try {
-				final CompressedRTF crtf = new CompressedRTF();
-				decompressed = crtf.decompress(new ByteArrayInputStream(value));
-			} catch (final Exception e) {
-				logger.log(Level.FINEST, "Could not decompress RTF data", e);
-			}
+		try {
+			final CompressedRTF crtf = new CompressedRTF();
+			decompressed = crtf.decompress(cancellationToken != null ? cancellationToken.guard(value) : value);
+		} catch (final CancellationException e) {
+			throw e;
+		} catch (final Exception e) {
+			logger.log(Level.FINEST, "Could not decompress RTF data", e);
 		}
 		return decompressed;
 	}
 
+	/**
+	 * Reads all property values of this message, its recipients and
+	 * attachments that have not been read yet and copies the data still held
+	 * by the memory mapped .msg file. Then the file is closed, the message can
+	 * be used as before. Values spilled to disk are kept until
+	 * {@link #close()} is called.
+	 *
+	 * @throws IOException
+	 *             Thrown if the file could not be closed.
+	 * @throws UncheckedIOException
+	 *             Thrown if a property value could not be read.
+	 */
+	public void detach() throws IOException, UncheckedIOException {
+		getBodyText();
+		getBodyHTML();
+		getBodyRTF();
+		this.properties.detach();
+		for (final RecipientEntry recipient : recipients) {
+			recipient.detach();
+		}
+		for (final Attachment attachment : attachments) {
+			if (attachment instanceof FileAttachment) {
+				((FileAttachment) attachment).detach();
+			} else if (attachment instanceof MsgAttachment) {
+				final Message attached = ((MsgAttachment) attachment).getMessage();
+				if (attached != null) {
+					attached.detach();
+				}
+			}
+		}
+		closeSource();
+	}
+
+	/**
+	 * Completes the message once all its properties, recipients and
+	 * attachments have been set by the parser. The TO recipient is determined
+	 * only here (see {@link #checkToRecipient()}), rather than after every
+	 * single property.
+	 */
+	protected void finishParsing() {
+		checkToRecipient();
+		this.properties.trimToSize();
+	}
+
 	/**
 	 * @return the attachments
 	 */
@@ -387,6 +560,12 @@ public class Message {
 	 * @return the bodyHTML
 	 */
 	public String getBodyHTML() {
+		if (bodyHTML == null) {
+			final String spilled = resolveBody(0x1013);
+			if (spilled != null) {
+				return spilled;
+			}
+		}
 		return bodyHTML;
 	}
 
@@ -394,6 +573,12 @@ public class Message {
 	 * @return the bodyRTF
 	 */
 	public String getBodyRTF() {
+		if (bodyRTF == null) {
+			final String spilled = resolveBody(0x1009);
+			if (spilled != null) {
+				return spilled;
+			}
+		}
 		return bodyRTF;
 	}
 
@@ -401,6 +586,12 @@ public class Message {
 	 * @return the bodyText
 	 */
 	public String getBodyText() {
+		if (bodyText == null) {
+			final String spilled = resolveBody(0x1000);
+			if (spilled != null) {
+				return spilled;
+			}
+		}
 		return bodyText;
 	}
 
@@ -431,6 +622,34 @@ public class Message {
 	 *         RTF-HTML conversion
 	 */
 	public String getConvertedBodyHTML() {
+		return getConvertedBodyHTML(null);
+	}
+
+	/**
+	 * Returns the result of the RTF-HTML conversion like
+	 * {@link #getConvertedBodyHTML()}, but the conversion on first access is
+	 * stopped once the given token is cancelled.
+	 *
+	 * @param token
+	 *            The token checked during the conversion or null.
+	 * @return the convertedBodyHTML
+	 * @throws CancellationException
+	 *             Thrown if the token has been cancelled before the
+	 *             conversion has finished. A later call converts the body
+	 *             again.
+	 */
+	public String getConvertedBodyHTML(CancellationToken token) throws CancellationException {
+		final String rtf = convertedBodyHTML == null ? getBodyRTF() : null;
+		if (rtf != null) {
+			// converted on first access only, most callers never need it
+			try {
+				setConvertedBodyHTML(rtf2htmlConverter.rtf2html(rtf, token));
+			} catch (final CancellationException e) {
+				throw e;
+			} catch (final Exception e) {
+				logger.log(Level.WARNING, "Could not convert RTF body to HTML.", e);
+			}
+		}
 		return convertedBodyHTML;
 	}
 
@@ -478,6 +697,15 @@ public class Message {
 		return headers;
 	}
 
+	/**
+	 * @return The charset of the HTML body and other text stored as binary
+	 *         data, given by the internet code page (PR_INTERNET_CPID) or
+	 *         Windows-1252 if the message has none.
+	 */
+	public Charset getInternetCharset() {
+		return internetCharset != null ? internetCharset : binaryTextCharset;
+	}
+
 	public Date getLastModificationDate() {
 		return lastModificationDate;
 	}
@@ -496,6 +724,54 @@ public class Message {
 		return messageId;
 	}
 
+	/**
+	 * @return the mapping between the codes and the names of the named
+	 *         properties
+	 */
+	public NamedPropertyMapping getNamedProperties() {
+		return namedProperties;
+	}
+
+	/**
+	 * @param code
+	 *            The code of a named property (0x8000 or above).
+	 * @return The name of the property or null if it is unknown.
+	 */
+	public NamedProperty getNamedProperty(int code) {
+		return namedProperties.get(code);
+	}
+
+	/**
+	 * This method retrieves the value of a named property identified by a
+	 * numeric id (e.g., 0x8085 in the PSETID_Common property set).
+	 *
+	 * @param guid
+	 *            The property set.
+	 * @param id
+	 *            The numeric id within the property set.
+	 * @return The value of the specified property or null.
+	 */
+	public Object getNamedPropertyValue(UUID guid, long id) {
+		final int code = namedProperties.getCode(new NamedProperty(guid, id));
+		return code < 0 ? null : getPropertyValue(code);
+	}
+
+	/**
+	 * This method retrieves the value of a named property identified by a
+	 * string name (e.g., "Keywords" in the
+	 * {@link NamedProperty#PS_PUBLIC_STRINGS} property set).
+	 *
+	 * @param guid
+	 *            The property set.
+	 * @param name
+	 *            The name within the property set.
+	 * @return The value of the specified property or null.
+	 */
+	public Object getNamedPropertyValue(UUID guid, String name) {
+		final int code = namedProperties.getCode(new NamedProperty(guid, name));
+		return code < 0 ? null : getPropertyValue(code);
+	}
+
 	/**
 	 * This method should no longer be used due to the fact that message
 	 * properties are now stored with their keys being represented as integers.
@@ -541,6 +817,27 @@ public class Message {
 		return getPropertyFromHex(name);
 	}
 
+	/**
+	 * Returns the value of a binary property (PT_BINARY) without copying it,
+	 * unlike {@link #getPropertyValue(Integer)}. The returned buffer is
+	 * read-only and may be a view of the buffer the message has been parsed
+	 * from (see {@link MsgParser#parseMsg(ByteBuffer)}), so it is only valid
+	 * as long as that buffer is not changed. Values spilled to disk are read
+	 * from their temporary file.
+	 *
+	 * @param code
+	 *            The key for the property to be retrieved.
+	 * @return The value of the specified property or null if it is not
+	 *         available or not binary.
+	 */
+	public ByteBuffer getPropertyBuffer(int code) {
+		Object value = resolveProperty(code);
+		if (value instanceof SpilledValue) {
+			value = ((SpilledValue) value).get();
+		}
+		return value instanceof ByteBuffer ? ((ByteBuffer) value).duplicate() : null;
+	}
+
 	/**
 	 * This method returns a list of all available properties.
 	 *
@@ -582,7 +879,9 @@ public class Message {
 			final Object value = getPropertyValue(propCode);
 			final String hexCode = "0x" + convertToHex(propCode);
 			sb.append(hexCode + " / " + propCode);
-			sb.append(": " + value.toString());
+			// multi-valued properties are listed value by value
+			sb.append(": " + (value.getClass().isArray() && !(value instanceof byte[]) ? getPropertyValues(propCode)
+					: value).toString());
 			sb.append("\n");
 		}
 		return sb.toString();
@@ -597,10 +896,29 @@ public class Message {
 	 *
 	 * @param code
 	 *            The key for the property to be retrieved.
-	 * @return The value of the specified property.
+	 * @return The value of the specified property. Binary values (PT_BINARY)
+	 *         are returned as copies in byte arrays, use
+	 *         {@link #getPropertyBuffer(int)} to read them without copying.
 	 */
 	public Object getPropertyValue(Integer code) {
-		return this.properties.get(code);
+		return code == null ? null : MapiCodec.copyBuffers(resolveProperty(code));
+	}
+
+	/**
+	 * This method retrieves all values of a specific property. Multi-valued
+	 * properties (e.g., the keywords of a message) are returned value by
+	 * value, all other properties as a single value.
+	 *
+	 * @param code
+	 *            The key for the property to be retrieved.
+	 * @return A read-only list of the values of the specified property, which
+	 *         is empty if the property is not available.
+	 */
+	public List<Object> getPropertyValues(Integer code) {
+		if (code == null) {
+			return Collections.<Object> emptyList();
+		}
+		return PropertyMap.toValueList(getPropertyValue(code));
 	}
 
 	/**
@@ -609,6 +927,15 @@ public class Message {
 	public List<RecipientEntry> getRecipients() {
 		return recipients;
 	}
+	/**
+	 * @return The charset of the 8 bit strings, given by the message code
+	 *         page (PR_MESSAGE_CODEPAGE) or ISO-8859-1 if the message has
+	 *         none.
+	 */
+	public Charset getString8Charset() {
+		return string8Charset != null ? string8Charset : StandardCharsets.ISO_8859_1;
+	}
+
 	/**
 	 * @return the subject
 	 */
@@ -648,6 +975,153 @@ public class Message {
 		return null;
 	}
 
+	/**
+	 * Tells whether this message is incomplete because the parser stopped
+	 * after its budget had been exceeded (see
+	 * {@link MsgParser#setParseBudget(ParseBudget)}). The top level message
+	 * is flagged as well if one of its attached messages has been truncated.
+	 *
+	 * @return Whether properties, recipients or attachments are missing.
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Opens a reader for the HTML body, which is decoded while it is read.
+	 * Unlike {@link #getBodyHTML()}, a body that has not been read yet (see
+	 * {@link MsgParser#setLazy(boolean)}) or has been spilled to disk (see
+	 * {@link MsgParser#setSpillThreshold(long)}) is never held as a whole.
+	 *
+	 * @return A reader for the HTML body or null if there is none.
+	 * @throws IOException
+	 *             Thrown if the body could not be opened.
+	 */
+	public Reader openBodyHtmlReader() throws IOException {
+		if (bodyHTML != null) {
+			return new StringReader(bodyHTML);
+		}
+		return openBodyReader(0x1013);
+	}
+
+	/**
+	 * Opens a reader decoding a body property while it is read. Unicode
+	 * strings are decoded as UTF-16LE, 8 bit strings with
+	 * {@link #getString8Charset()}, binary values with
+	 * {@link #getInternetCharset()} like {@link #convertValueToString(Object)}
+	 * does.
+	 *
+	 * @param code
+	 *            The code of the body property.
+	 * @return A reader for the body or null if there is none.
+	 * @throws IOException
+	 *             Thrown if the body could not be opened.
+	 */
+	protected Reader openBodyReader(int code) throws IOException {
+		Object value = this.properties.get(code);
+		if (value instanceof DeferredValue && ((DeferredValue) value).isResolved()) {
+			value = ((DeferredValue) value).get();
+		}
+		if (value == null) {
+			return null;
+		}
+		final InputStream in;
+		int mapiType = 0x102;
+		if (value instanceof String) {
+			return new StringReader((String) value);
+		} else if (value instanceof DeferredValue) {
+			in = ((DeferredValue) value).openStream();
+			mapiType = ((DeferredValue) value).getMapiType();
+		} else if (value instanceof SpilledValue) {
+			in = ((SpilledValue) value).openStream();
+			mapiType = ((SpilledValue) value).getMapiType();
+		} else if (value instanceof byte[]) {
+			in = new ByteArrayInputStream((byte[]) value);
+		} else if (value instanceof ByteBuffer) {
+			in = new ByteBufferInputStream((ByteBuffer) value);
+		} else {
+			return new StringReader(this.convertValueToString(value));
+		}
+		final Charset charset = mapiType == 0x1e ? getString8Charset() : MapiCodec.getStringCharset(mapiType);
+		return new InputStreamReader(in, charset != null ? charset : getInternetCharset());
+	}
+
+	/**
+	 * Opens a reader for the plain text body, which is decoded while it is
+	 * read. Unlike {@link #getBodyText()}, a body that has not been read yet
+	 * (see {@link MsgParser#setLazy(boolean)}) or has been spilled to disk
+	 * (see {@link MsgParser#setSpillThreshold(long)}) is never held as a
+	 * whole, e.g. for indexing very large bodies.
+	 *
+	 * @return A reader for the text body or null if there is none.
+	 * @throws IOException
+	 *             Thrown if the body could not be opened.
+	 */
+	public Reader openBodyTextReader() throws IOException {
+		if (bodyText != null) {
+			return new StringReader(bodyText);
+		}
+		return openBodyReader(0x1000);
+	}
+
+	/**
+	 * Drops the cancellation token of the parser from this message and the
+	 * messages attached to it once parsing is over, so the token no longer
+	 * applies to the parsed message.
+	 */
+	protected void releaseCancellationToken() {
+		cancellationToken = null;
+		for (final Attachment attachment : attachments) {
+			if (attachment instanceof MsgAttachment && ((MsgAttachment) attachment).isLoaded()) {
+				((MsgAttachment) attachment).getMessage().releaseCancellationToken();
+			}
+		}
+	}
+
+	/**
+	 * Decodes a body that has been deferred in lazy mode or spilled to disk.
+	 * A deferred body is set like any other property. A spilled body is
+	 * decoded on every call and returned without being kept by the message,
+	 * its property keeps referring to the temporary file.
+	 *
+	 * @param code
+	 *            The code of the body property.
+	 * @return The spilled body or null if the body has not been spilled.
+	 */
+	protected String resolveBody(int code) {
+		final Object value = this.properties.get(code);
+		if (!(value instanceof SpilledValue)) {
+			resolveProperty(code);
+			return null;
+		}
+		final Object data = ((SpilledValue) value).get();
+		if (code == 0x1009) {
+			final byte[] decompressed = data instanceof ByteBuffer ? decompressRtfBytes((ByteBuffer) data) : null;
+			return decompressed != null ? new String(decompressed) : null;
+		}
+		return convertValueToString(data);
+	}
+
+	/**
+	 * Returns the value of a property and decodes it first if it has been
+	 * deferred in lazy mode. The decoded property is set again, so the special
+	 * attributes (e.g., {@link #bodyText}) are filled in as well.
+	 *
+	 * @param code
+	 *            The key for the property to be retrieved.
+	 * @return The value of the property or null.
+	 */
+	protected Object resolveProperty(int code) {
+		final Object value = this.properties.get(code);
+		if (!(value instanceof DeferredValue)) {
+			return value;
+		}
+		final DeferredValue deferred = (DeferredValue) value;
+		this.setProperty(new MessageProperty(code << 16 | deferred.getMapiType(), deferred.get(),
+				(int) deferred.getSize()));
+		return this.properties.get(code);
+	}
+
 	/**
 	 * @param attachments
 	 *            the attachments to set
@@ -688,15 +1162,11 @@ public class Message {
 		// if it's not compressed, the utils class
 		// is able to detect this anyway
 		if (this.bodyRTF == null && bodyRTF != null) {
-			if (bodyRTF instanceof byte[]) {
-				final byte[] decompressedBytes = decompressRtfBytes((byte[]) bodyRTF);
+			if (bodyRTF instanceof byte[] || bodyRTF instanceof ByteBuffer) {
+				final byte[] decompressedBytes = bodyRTF instanceof byte[] ? decompressRtfBytes((byte[]) bodyRTF)
+						: decompressRtfBytes((ByteBuffer) bodyRTF);
 				if (decompressedBytes != null) {
 					this.bodyRTF = new String(decompressedBytes);
-					try {
-						setConvertedBodyHTML(rtf2htmlConverter.rtf2html(this.bodyRTF));
-					} catch (final Exception e) {
-						logger.log(Level.WARNING, "Could not convert RTF body to HTML.", e);
-					}
 				}
 			} else {
 				logger.log(Level.FINEST, "Unexpected data type " + bodyRTF.getClass());
@@ -714,12 +1184,19 @@ public class Message {
 		}
 	}
 
+	/**
+	 * @param clientSubmitTime
+	 *            the clientSubmitTime to set
+	 */
+	public void setClientSubmitTime(Date clientSubmitTime) {
+		if (clientSubmitTime != null) {
+			this.clientSubmitTime = clientSubmitTime;
+		}
+	}
+
 	public void setClientSubmitTime(String value) {
 		if (value != null) {
-			final Date d = Message.parseDateString(value);
-			if (d != null) {
-				this.clientSubmitTime = d;
-			}
+			this.setClientSubmitTime(Message.parseDateString(value));
 		}
 	}
 
@@ -730,13 +1207,22 @@ public class Message {
 	public void setConvertedBodyHTML(String convertedBodyHTML) {
 		this.convertedBodyHTML = convertedBodyHTML;
 	}
+	/**
+	 * Sets the creation date, which is also used as the date of the message.
+	 *
+	 * @param creationDate
+	 *            the creationDate to set
+	 */
+	public void setCreationDate(Date creationDate) {
+		if (creationDate != null) {
+			this.creationDate = creationDate;
+			setDate(creationDate);
+		}
+	}
+
 	public void setCreationDate(String value) {
 		if (value != null) {
-			final Date d = Message.parseDateString(value);
-			if (d != null) {
-				this.creationDate = d;
-				setDate(d);
-			}
+			this.setCreationDate(Message.parseDateString(value));
 		}
 	}
 
@@ -818,12 +1304,19 @@ public class Message {
 		}
 	}
 
+	/**
+	 * @param lastModificationDate
+	 *            the lastModificationDate to set
+	 */
+	public void setLastModificationDate(Date lastModificationDate) {
+		if (lastModificationDate != null) {
+			this.lastModificationDate = lastModificationDate;
+		}
+	}
+
 	public void setLastModificationDate(String value) {
 		if (value != null) {
-			final Date d = Message.parseDateString(value);
-			if (d != null) {
-				this.lastModificationDate = d;
-			}
+			this.setLastModificationDate(Message.parseDateString(value));
 		}
 	}
 
@@ -846,6 +1339,17 @@ public class Message {
 			this.messageId = messageId;
 		}
 	}
+
+	/**
+	 * @param namedProperties
+	 *            the mapping between the codes and the names of the named
+	 *            properties
+	 */
+	public void setNamedProperties(NamedPropertyMapping namedProperties) {
+		if (namedProperties != null) {
+			this.namedProperties = namedProperties;
+		}
+	}
 	/**
 	 * Sets the name/value pair in the {@link #properties} map. Some properties
 	 * are put into special attributes (e.g., {@link #toEmail} when the property
@@ -859,89 +1363,118 @@ public class Message {
 	 *             Thrown if the detected data type does not match the expected
 	 *             data type.
 	 */
+	@Override
 	public void setProperty(MessageProperty msgProp) throws ClassCastException {
-		final String name = msgProp.getClazz();
+		final int mapiClass = msgProp.getPropertyId();
 		final Object value = msgProp.getData();
 
-		if (name == null || value == null)
+		if (value == null)
 			return;
 
-		// Most fields expect a String representation of the value
-		final String stringValue = this.convertValueToString(value);
+		// the value put into the properties map. a body decoded from a binary
+		// value replaces it, so the body is held only once
+		Object stored = value;
 
-		int mapiClass = -1;
-		try {
-			mapiClass = Integer.parseInt(name, 16);
-		} catch (final NumberFormatException e) {
-			logger.log(Level.FINEST, "Unexpected type: " + name);
-		}
+		// Most fields expect a String representation of the value, which is
+		// only created for those fields. The bodies are only read on first
+		// access if they have been deferred or spilled (see resolveBody).
+		final boolean deferred = value instanceof DeferredValue || value instanceof SpilledValue;
 
 		switch (mapiClass) {
 			case 0x1a : // MESSAGE CLASS
-				this.setMessageClass(stringValue);
+				this.setMessageClass(this.convertValueToString(value));
 				break;
 			case 0x1035 :
-				this.setMessageId(stringValue);
+				this.setMessageId(this.convertValueToString(value));
 				break;
 			case 0x37 : // SUBJECT
 			case 0xe1d : // NORMALIZED SUBJECT
-				this.setSubject(stringValue);
+				this.setSubject(this.convertValueToString(value));
 				break;
 			case 0xc1f : // SENDER EMAIL ADDRESS
 			case 0x65 : // SENT REPRESENTING EMAIL ADDRESS
 			case 0x3ffa : // LAST MODIFIER NAME
-			case 0x800d :
-			case 0x8008 :
-				this.setFromEmail(stringValue);
+				this.setFromEmail(this.convertValueToString(value));
 				break;
 			case 0x42 : // SENT REPRESENTING NAME
-				this.setFromName(stringValue);
+				this.setFromName(this.convertValueToString(value));
 				break;
 			case 0x76 : // RECEIVED BY EMAIL ADDRESS
-				this.setToEmail(stringValue, true);
-				break;
-			case 0x8000 :
-				this.setToEmail(stringValue);
+				this.setToEmail(this.convertValueToString(value), true);
 				break;
 			case 0x3001 : // DISPLAY NAME
-				this.setToName(stringValue);
+				this.setToName(this.convertValueToString(value));
 				break;
 			case 0xe04 : // DISPLAY TO
-				this.setDisplayTo(stringValue);
+				this.setDisplayTo(this.convertValueToString(value));
 				break;
 			case 0xe03 : // DISPLAY CC
-				this.setDisplayCc(stringValue);
+				this.setDisplayCc(this.convertValueToString(value));
 				break;
 			case 0xe02 : // DISPLAY BCC
-				this.setDisplayBcc(stringValue);
+				this.setDisplayBcc(this.convertValueToString(value));
 				break;
 			case 0x1013 : // HTML
-				this.setBodyHTML(stringValue, true);
+				if (!deferred) {
+					final String html = this.convertValueToString(value);
+					this.setBodyHTML(html, true);
+					if (html != null && html == this.bodyHTML) {
+						stored = html;
+					}
+				}
 				break;
 			case 0x1000 : // BODY
-				this.setBodyText(stringValue);
+				if (!deferred) {
+					final String text = this.convertValueToString(value);
+					this.setBodyText(text);
+					if (text != null && text == this.bodyText) {
+						stored = text;
+					}
+				}
 				break;
 			case 0x1009 : // RTF COMPRESSED
-				this.setBodyRTF(value);
+				if (!deferred) {
+					this.setBodyRTF(value);
+				}
 				break;
 			case 0x7d : // TRANSPORT MESSAGE HEADERS
-				this.setHeaders(stringValue);
+				this.setHeaders(this.convertValueToString(value));
 				break;
 			case 0x3007 : // CREATION TIME
-				this.setCreationDate(stringValue);
+				if (value instanceof Instant) {
+					this.setCreationDate(Date.from((Instant) value));
+				} else {
+					this.setCreationDate(this.convertValueToString(value));
+				}
 				break;
 			case 0x3008 : // LAST MODIFICATION TIME
-				this.setLastModificationDate(stringValue);
+				if (value instanceof Instant) {
+					this.setLastModificationDate(Date.from((Instant) value));
+				} else {
+					this.setLastModificationDate(this.convertValueToString(value));
+				}
+				break;
+			case 0x3ffd : // MESSAGE CODEPAGE
+				if (value instanceof Integer) {
+					this.string8Charset = StringDecoder.getCharset((Integer) value);
+				}
+				break;
+			case 0x3fde : // INTERNET CPID
+				if (value instanceof Integer) {
+					this.internetCharset = StringDecoder.getCharset((Integer) value);
+				}
 				break;
 			case 0x39 : // CLIENT SUBMIT TIME
-				this.setClientSubmitTime(stringValue);
+				if (value instanceof Instant) {
+					this.setClientSubmitTime(Date.from((Instant) value));
+				} else {
+					this.setClientSubmitTime(this.convertValueToString(value));
+				}
 				break;
 		}
 
 		// save all properties (incl. those identified above)
-		this.properties.put(mapiClass, value);
-
-		checkToRecipient();
+		this.properties.put(mapiClass, stored);
 
 		// other possible values (some are duplicates)
 		// 0044: recv name
@@ -1008,6 +1541,14 @@ public class Message {
 		}
 	}
 
+	/**
+	 * @param truncated
+	 *            whether the message is incomplete
+	 */
+	public void setTruncated(boolean truncated) {
+		this.truncated = truncated;
+	}
+
 	/**
 	 * Provides all information of this message object.
 	 *
@@ -1025,8 +1566,9 @@ public class Message {
 			sb.append("Subject: " + this.subject + "\n");
 		}
 		sb.append("\n");
-		if (this.bodyText != null) {
-			sb.append(this.bodyText);
+		final String bodyText = getBodyText();
+		if (bodyText != null) {
+			sb.append(bodyText);
 		}
 		if (this.attachments.size() > 0) {
 			sb.append("\n");
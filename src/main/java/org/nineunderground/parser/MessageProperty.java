@@ -31,24 +31,50 @@ package org.nineunderground.parser;
  */
 public class MessageProperty {
 
-	private final String clazz;
+	private final int tag;
 	private final Object data;
 	private final int size;
 
-	public MessageProperty(String clazz, Object data, int size) {
+	/**
+	 * @param tag
+	 *            The property tag, i.e., the property id in the upper and the
+	 *            mapi type in the lower 16 bits (see
+	 *            {@link FieldInformation#getTag()}).
+	 * @param data
+	 *            The property data.
+	 * @param size
+	 *            The number of bytes of the data.
+	 */
+	public MessageProperty(int tag, Object data, int size) {
 		super();
-		this.clazz = clazz;
+		this.tag = tag;
 		this.data = data;
 		this.size = size;
 	}
 
+	/**
+	 * @param clazz
+	 *            A 4 digit hex code representing the property type.
+	 * @param data
+	 *            The property data.
+	 * @param size
+	 *            The number of bytes of the data.
+	 * @deprecated Use {@link #MessageProperty(int, Object, int)} instead.
+	 */
+	@Deprecated
+	public MessageProperty(String clazz, Object data, int size) {
+		this(new FieldInformation(clazz, 0).getTag(), data, size);
+	}
+
 	/**
 	 * A 4 digit code representing the property type.
 	 *
 	 * @return A string representation of the property type.
+	 * @deprecated Use {@link #getPropertyId()} instead.
 	 */
+	@Deprecated
 	public String getClazz() {
-		return clazz;
+		return tag == FieldInformation.UNKNOWN_TAG ? FieldInformation.UNKNOWN : FieldInformation.toClazz(tag >>> 16);
 	}
 
 	/**
@@ -60,6 +86,24 @@ public class MessageProperty {
 		return data;
 	}
 
+	/**
+	 * The mapi type of the property (e.g., 0x1f for unicode strings).
+	 *
+	 * @return The mapi type or {@link FieldInformation#UNKNOWN_MAPITYPE}.
+	 */
+	public int getMapiType() {
+		return tag == FieldInformation.UNKNOWN_TAG ? FieldInformation.UNKNOWN_MAPITYPE : tag & 0xffff;
+	}
+
+	/**
+	 * The id of the property (e.g., 0x37 for the subject).
+	 *
+	 * @return The property id or -1 if it is unknown.
+	 */
+	public int getPropertyId() {
+		return tag == FieldInformation.UNKNOWN_TAG ? -1 : tag >>> 16;
+	}
+
 	/**
 	 * The size of the data.
 	 *
@@ -69,4 +113,14 @@ public class MessageProperty {
 		return size;
 	}
 
+	/**
+	 * The property tag, i.e., the property id in the upper and the mapi type
+	 * in the lower 16 bits.
+	 *
+	 * @return The property tag or {@link FieldInformation#UNKNOWN_TAG}.
+	 */
+	public int getTag() {
+		return tag;
+	}
+
 }
@@ -33,29 +33,40 @@
  */
 package org.nineunderground.parser;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.Date;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.apache.poi.poifs.filesystem.DirectoryEntry;
 import org.apache.poi.poifs.filesystem.DocumentEntry;
 import org.apache.poi.poifs.filesystem.DocumentInputStream;
-import org.apache.poi.poifs.filesystem.Entry;
 import org.apache.poi.poifs.filesystem.POIFSFileSystem;
 import org.nineunderground.parser.attachment.Attachment;
+import org.nineunderground.parser.attachment.AttachmentFilter;
 import org.nineunderground.parser.attachment.FileAttachment;
 import org.nineunderground.parser.attachment.MsgAttachment;
+import org.nineunderground.parser.cfb.BufferPool;
+import org.nineunderground.parser.cfb.CompoundFile;
+import org.nineunderground.parser.cfb.CompoundFileReader;
+import org.nineunderground.parser.cfb.PoiCompoundFile;
 import org.nineunderground.parser.rtf.RTF2HTMLConverter;
 import org.nineunderground.parser.rtf.SimpleRTF2HTMLConverter;
 
@@ -70,7 +81,93 @@ public class MsgParser {
 	protected static final Logger logger = Logger.getLogger(MsgParser.class.getName());
 	protected static final String propsKey = "__properties_version1.0";
 	protected static final String propertyStreamPrefix = "__substg1.0_";
+	protected static final String namedPropertiesKey = "__nameid_version1.0";
+	/**
+	 * The size of the header of the properties stream of the top level
+	 * message.
+	 */
+	protected static final int topLevelPropsHeaderSize = 32;
+	/**
+	 * The size of the header of the properties stream of an embedded message.
+	 */
+	protected static final int embeddedPropsHeaderSize = 24;
+	/**
+	 * The size of the header of the properties stream of a recipient or an
+	 * attachment.
+	 */
+	protected static final int propsHeaderSize = 8;
+	/**
+	 * The size of a single entry of a properties stream.
+	 */
+	protected static final int propsEntrySize = 16;
+	/**
+	 * The initial size of the array a .msg file is read into from an input
+	 * stream that does not know how many bytes are available.
+	 */
+	protected static final int streamReadMinSize = 64 * 1024;
+	/**
+	 * The maximum number of entries of the {@link #fieldInformationCache}.
+	 */
+	protected static final int fieldInformationCacheSize = 4096;
+	/**
+	 * The field information of all document entry names seen so far, shared
+	 * by all parsers since the same names recur in every .msg file.
+	 */
+	protected static final Map<String, FieldInformation> fieldInformationCache = new ConcurrentHashMap<>();
+	/**
+	 * The maximum number of entries of the {@link #namedPropertiesCache}.
+	 */
+	protected static final int namedPropertiesCacheSize = 64;
+	/**
+	 * The maximum number of bytes of the "__nameid_version1.0" streams for
+	 * their mapping to be cached.
+	 */
+	protected static final int namedPropertiesCacheMaxKeySize = 64 * 1024;
+	/**
+	 * The named property mappings decoded so far, keyed by the content of the
+	 * streams they have been decoded from. Messages created by the same client
+	 * mostly share the same mapping.
+	 */
+	protected static final Map<ByteBuffer, NamedPropertyMapping> namedPropertiesCache = new ConcurrentHashMap<>();
+	/**
+	 * The properties read before the {@link #filter} is evaluated.
+	 */
+	protected static final ParseOptions envelopeOptions = ParseOptions.of(ParseOptions.ENVELOPE);
 	protected RTF2HTMLConverter rtf2htmlConverter = new SimpleRTF2HTMLConverter();
+	/**
+	 * Whether POI is used instead of the built-in {@link CompoundFileReader}.
+	 */
+	protected boolean usePoi = false;
+	/**
+	 * Whether string and binary values are read on first access instead of
+	 * while parsing (see {@link #setLazy(boolean)}).
+	 */
+	protected boolean lazy = false;
+	/**
+	 * The properties to be read or null if all properties are read (see
+	 * {@link #setParseOptions(ParseOptions)}).
+	 */
+	protected ParseOptions parseOptions = null;
+	/**
+	 * The filter messages have to pass or null (see
+	 * {@link #setFilter(Predicate)}).
+	 */
+	protected Predicate<Message> filter = null;
+	/**
+	 * The filter the file attachments have to pass for their data to be read
+	 * or null (see {@link #setAttachmentFilter(Predicate)}).
+	 */
+	protected Predicate<FileAttachment> attachmentFilter = null;
+	/**
+	 * The size in bytes above which string and binary values are written to
+	 * temporary files (see {@link #setSpillThreshold(long)}).
+	 */
+	protected long spillThreshold = Long.MAX_VALUE;
+	/**
+	 * The limits of the work spent on a single .msg file (see
+	 * {@link #setParseBudget(ParseBudget)}).
+	 */
+	protected ParseBudget parseBudget = new ParseBudget();
 
 	/**
 	 * Empty constructor.
@@ -91,77 +188,95 @@ public class MsgParser {
 	 *         {@link FieldInformation#UNKNOWN} class and type.
 	 */
 	protected FieldInformation analyzeDocumentEntry(DocumentEntry de) {
-		final String name = de.getName();
-		// we are only interested in document entries
-		// with names starting with __substg1.
-		logger.finest("Document entry: " + name);
-		if (name.startsWith(propertyStreamPrefix)) {
-			String clazz = FieldInformation.UNKNOWN;
-			String type = FieldInformation.UNKNOWN;
-			int mapiType = FieldInformation.UNKNOWN_MAPITYPE;
-			try {
-				final String val = name.substring(propertyStreamPrefix.length()).toLowerCase();
-				// the first 4 digits of the remainder
-				// defines the field class (or field name)
-				// and the last 4 digits indicate the
-				// data type.
-				clazz = val.substring(0, 4);
-				type = val.substring(4);
-				logger.finest("  Found document entry: class=" + clazz + ", type=" + type);
-				mapiType = Integer.parseInt(type, 16);
-			} catch (final RuntimeException re) {
-				logger.log(Level.FINE, "Could not parse directory entry " + name, re);
-				return new FieldInformation();
-			}
-			return new FieldInformation(clazz, mapiType);
-		} else {
-			logger.finest("Ignoring entry with name " + name);
+		return this.analyzeDocumentEntry(de.getName());
+	}
+
+	/**
+	 * Analyzes the name of a document entry and returns a
+	 * {@link FieldInformation} object containing the class and type of the
+	 * entry.
+	 *
+	 * @param name
+	 *            The name of the document entry that should be examined.
+	 * @return A {@link FieldInformation} object containing class and type of
+	 *         the document entry or, if the entry is not an interesting field,
+	 *         an empty {@link FieldInformation} object containing
+	 *         {@link FieldInformation#UNKNOWN} class and type.
+	 */
+	protected FieldInformation analyzeDocumentEntry(String name) {
+		FieldInformation info = fieldInformationCache.get(name);
+		if (info == null) {
+			final int tag = getTag(name);
+			info = tag == FieldInformation.UNKNOWN_TAG ? FieldInformation.UNKNOWN_FIELD : new FieldInformation(tag);
+			// the cache is limited since the names are taken from the
+			// (possibly malformed) files
+			if (fieldInformationCache.size() < fieldInformationCacheSize) {
+				fieldInformationCache.put(name, info);
+			}
 		}
-		// we are not interested in the field
-		// and return an empty FieldInformation object
-		return new FieldInformation();
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.finest("Document entry: " + name + ", class=" + info.getClazz() + ", type=" + info.getMapiType());
+		}
+		return info;
 	}
 
-	private String bytesToHex(byte[] bytes) throws IOException {
-		final StringBuilder byteStr = new StringBuilder();
-		for (final byte b : bytes) {
-			byteStr.append(String.format("%02X", b & 0xff));
+	/**
+	 * @param msg
+	 *            The message being parsed, which holds the token of the
+	 *            current call of parseMsg until parsing is over.
+	 * @throws CancellationException
+	 *             Thrown if the token has been cancelled.
+	 */
+	private static void checkCancelled(Message msg) throws CancellationException {
+		if (msg.cancellationToken != null) {
+			msg.cancellationToken.throwIfCancelled();
 		}
-		return byteStr.toString();
 	}
 
 	/**
 	 * Parses a directory document entry which can either be a simple entry or a
-	 * stream that has to be split up into multiple document entries again. The
+	 * stream that has to be split up into multiple properties again. The
 	 * parsed information is put into the {@link Message} object.
 	 *
-	 * @param de
-	 *            The current node in the .msg file.
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the storage containing the document entry.
+	 * @param entry
+	 *            The index of the current node in the .msg file.
 	 * @param msg
 	 *            The resulting {@link Message} object.
 	 * @throws IOException
 	 *             Thrown if the .msg file could not be parsed.
 	 */
-	protected void checkDirectoryDocumentEntry(DocumentEntry de, Message msg) throws IOException {
-		if (de.getName().startsWith(propsKey)) {
-			// TODO: parse properties stream
-			final List<DocumentEntry> deList = getDocumentEntriesFromPropertiesStream(de);
-			for (final DocumentEntry deFromProps : deList) {
-				final MessageProperty msgProp = getMessagePropertyFromDocumentEntry(deFromProps);
-				msg.setProperty(msgProp);
-			}
-		} else {
-			final MessageProperty msgProp = getMessagePropertyFromDocumentEntry(de);
+	protected void checkDirectoryDocumentEntry(CompoundFile cf, int dir, int entry, Message msg) throws IOException {
+		final String name = cf.getName(entry);
+		if (name.startsWith(propsKey)) {
+			// the header of the properties stream of an embedded message is
+			// shorter than the one of the top level message
+			this.parsePropertiesStream(cf, entry,
+					dir == CompoundFile.ROOT ? topLevelPropsHeaderSize : embeddedPropsHeaderSize,
+					parseOptions == null ? msg : msgProp -> {
+						if (this.isIncluded(msgProp.getTag())) {
+							msg.setProperty(msgProp);
+						}
+					});
+		} else if (this.isIncluded(getTag(name))) {
+			// streams of properties that are not selected are not read
+			final MessageProperty msgProp = getMessagePropertyFromDocumentEntry(cf, dir, entry, msg);
 			msg.setProperty(msgProp);
 		}
 	}
 
 	/**
-	 * Recursively parses the complete .msg file with the help of the POI
-	 * library. The parsed information is put into the {@link Message} object.
+	 * Parses the complete .msg file, walking the entries of the compound file
+	 * by their index. The parsed information is put into the
+	 * {@link Message} object.
 	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
 	 * @param dir
-	 *            The current node in the .msg file.
+	 *            The index of the current node in the .msg file.
 	 * @param msg
 	 *            The resulting {@link Message} object.
 	 * @throws IOException
@@ -169,39 +284,132 @@ public class MsgParser {
 	 * @throws UnsupportedOperationException
 	 *             Thrown if the .msg file contains unknown data.
 	 */
-	protected void checkDirectoryEntry(DirectoryEntry dir, Message msg)
+	protected void checkDirectoryEntry(CompoundFile cf, int dir, Message msg)
 			throws IOException, UnsupportedOperationException {
+		this.checkDirectoryEntry(cf, dir, msg, false, 0, new ParseUsage());
+	}
 
-		// we iterate through all entries in the current directory
-		for (final Iterator<?> iter = dir.getEntries(); iter.hasNext();) {
-			final Entry entry = (Entry) iter.next();
-
-			// check whether the entry is either a directory entry
-			// or a document entry
-
-			if (entry.isDirectoryEntry()) {
-				final DirectoryEntry de = (DirectoryEntry) entry;
-				// attachments have a special name and
-				// have to be handled separately at this point
-				if (de.getName().startsWith("__attach_version1.0")) {
-					this.parseAttachment(de, msg);
-				} else if (de.getName().startsWith("__recip_version1.0")) {
-					// a recipient entry has been found (which is also a
-					// directory entry itself)
-					this.checkRecipientDirectoryEntry(de, msg);
-				} else {
-					// a directory entry has been found. this
-					// node will be recursively checked
-					this.checkDirectoryEntry(de, msg);
+	/**
+	 * Parses the complete .msg file below the given storage, except for the
+	 * envelope streams of the storage if they have already been read by
+	 * {@link #parseEnvelope(CompoundFile, int, Message)}. The storages are
+	 * walked with an explicit stack rather than recursively, so deeply nested
+	 * files cannot overflow the call stack. Once the {@link #parseBudget} is
+	 * exceeded the walk stops and the message is flagged as truncated.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the current node in the .msg file.
+	 * @param msg
+	 *            The resulting {@link Message} object.
+	 * @param skipEnvelope
+	 *            Whether the envelope streams of the storage are skipped.
+	 * @param depth
+	 *            The nesting depth of the storage.
+	 * @param usage
+	 *            The work done on the .msg file so far, which the work of the
+	 *            walk is added to.
+	 * @throws IOException
+	 *             Thrown if the .msg file could not be parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file contains unknown data.
+	 */
+	protected void checkDirectoryEntry(CompoundFile cf, int dir, Message msg, boolean skipEnvelope, int depth,
+			ParseUsage usage) throws IOException, UnsupportedOperationException {
+
+		final Deque<PendingStorage> pending = new ArrayDeque<>();
+		pending.push(new PendingStorage(dir, msg, depth));
+		// the number of pending storages of every message, an attached
+		// message is finished once the walk has left all of its storages
+		final Map<Message, Integer> pendingCounts = new IdentityHashMap<>();
+		pendingCounts.put(msg, 1);
+
+		while (!pending.isEmpty()) {
+			final PendingStorage current = pending.pop();
+			final int pendingSize = pending.size();
+			if (current.depth > parseBudget.getMaxDepth()) {
+				// too deeply nested storages are skipped, the rest of the
+				// message is still parsed
+				this.truncate(msg, current.msg, "nesting depth");
+				this.leaveStorage(current, msg, pendingCounts);
+				continue;
+			}
+
+			// we iterate through all entries in the current directory
+			for (int i = 0; i < cf.getChildCount(current.storage); i++) {
+				checkCancelled(msg);
+				final int entry = cf.getChild(current.storage, i);
+				final String name = cf.getName(entry);
+
+				if (skipEnvelope && current.storage == dir && cf.isStream(entry) && isEnvelopeStream(name)) {
+					continue;
+				}
+				// recipients and attachments are parsed as a whole, so their
+				// streams are counted up front. the data of an attachment is
+				// only counted once it has passed the attachment filter
+				final boolean attachment = cf.isStorage(entry) && name.startsWith("__attach_version1.0")
+						&& (parseOptions == null || parseOptions.includesAttachments());
+				final boolean recipient = cf.isStorage(entry) && name.startsWith("__recip_version1.0")
+						&& (parseOptions == null || parseOptions.includesRecipients());
+				usage.entries++;
+				if (attachment || recipient) {
+					usage.entries += cf.getChildCount(entry);
+					usage.bytes += getStreamSizes(cf, entry);
+				} else if (cf.isStream(entry) && (name.startsWith(propsKey) || this.isIncluded(getTag(name)))) {
+					usage.bytes += cf.getSize(entry);
+				}
+				if (attachment) {
+					usage.attachments++;
+				}
+				String limit = usage.getExceededLimit(parseBudget);
+				if (limit != null) {
+					this.truncate(msg, current.msg, limit);
+					this.finishAttachedMessages(current, msg, pending);
+					return;
+				}
+				if (cf.isStorage(entry)) {
+					// attachments have a special name and
+					// have to be handled separately at this point
+					if (name.startsWith("__attach_version1.0")) {
+						if (attachment) {
+							this.parseAttachment(cf, entry, current.msg, current.depth, pending, usage);
+							// the data of the attachment has been left out if
+							// it exceeded the budget
+							limit = usage.getExceededLimit(parseBudget);
+							if (limit != null) {
+								this.truncate(msg, current.msg, limit);
+								this.finishAttachedMessages(current, msg, pending);
+								return;
+							}
+						}
+					} else if (name.startsWith("__recip_version1.0")) {
+						// a recipient entry has been found (which is also a
+						// directory entry itself)
+						if (recipient) {
+							this.checkRecipientDirectoryEntry(cf, entry, current.msg);
+						}
+					} else if (name.startsWith(namedPropertiesKey)) {
+						// the named property mapping does not hold any message
+						// properties, its streams only look like them. it is
+						// read before the message is parsed
+					} else {
+						// a directory entry has been found. this
+						// node will be checked later on
+						pending.push(new PendingStorage(entry, current.msg, current.depth + 1));
+					}
+				} else if (cf.isStream(entry)) {
+					// a document entry contains information about
+					// the mail (e.g, from, to, subject, ...)
+					checkDirectoryDocumentEntry(cf, current.storage, entry, current.msg);
 				}
-			} else if (entry.isDocumentEntry()) {
-				// a document entry contains information about
-				// the mail (e.g, from, to, subject, ...)
-				final DocumentEntry de = (DocumentEntry) entry;
-				checkDirectoryDocumentEntry(de, msg);
-			} else {
-				// any other type is not supported
 			}
+			// the storages pushed for the current one are on top
+			final Iterator<PendingStorage> pushed = pending.iterator();
+			for (int i = pending.size() - pendingSize; i > 0; i--) {
+				pendingCounts.merge(pushed.next().msg, 1, Integer::sum);
+			}
+			this.leaveStorage(current, msg, pendingCounts);
 		}
 	}
 
@@ -210,70 +418,118 @@ public class MsgParser {
 	 * possibly multiple recipients. The parsed information is put into the
 	 * {@link Message} object.
 	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
 	 * @param dir
-	 *            The current node in the .msg file.
+	 *            The index of the current node in the .msg file.
 	 * @param msg
 	 *            The resulting {@link Message} object.
 	 * @throws IOException
 	 *             Thrown if the .msg file could not be parsed.
 	 */
-	protected void checkRecipientDirectoryEntry(DirectoryEntry dir, Message msg) throws IOException {
+	protected void checkRecipientDirectoryEntry(CompoundFile cf, int dir, Message msg) throws IOException {
 
 		final RecipientEntry recipient = new RecipientEntry();
 
-		// we iterate through all entries in the current directory
-		for (final Iterator<?> iter = dir.getEntries(); iter.hasNext();) {
-			final Entry entry = (Entry) iter.next();
-
-			// check whether the entry is either a directory entry
-			// or a document entry, while we are just interested in document
-			// entries on this level
-			if (entry.isDirectoryEntry()) {
-				// not expected within a recipient entry
-			} else if (entry.isDocumentEntry()) {
-				// a document entry contains information about
-				// the mail (e.g, from, to, subject, ...)
-				final DocumentEntry de = (DocumentEntry) entry;
-				checkRecipientDocumentEntry(de, recipient);
-			} else {
-				// any other type is not supported
+		// we iterate through all entries in the current directory, while we
+		// are just interested in document entries on this level
+		for (int i = 0; i < cf.getChildCount(dir); i++) {
+			final int entry = cf.getChild(dir, i);
+			if (cf.isStream(entry)) {
+				checkRecipientDocumentEntry(cf, dir, entry, recipient, msg);
 			}
 		}
 
 		// after all properties are set -> add recipient to msg object
+		recipient.properties.trimToSize();
 		msg.addRecipient(recipient);
 	}
 
 	/**
 	 * Parses a recipient document entry which can either be a simple entry or a
-	 * stream that has to be split up into multiple document entries again. The
+	 * stream that has to be split up into multiple properties again. The
 	 * parsed information is put into the {@link RecipientEntry} object.
 	 *
-	 * @param de
-	 *            The current node in the .msg file.
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the recipient storage.
+	 * @param entry
+	 *            The index of the current node in the .msg file.
 	 * @param recipient
 	 *            The resulting {@link RecipientEntry} object.
+	 * @param msg
+	 *            The {@link Message} object the recipient belongs to.
 	 * @throws IOException
 	 *             Thrown if the .msg file could not be parsed.
 	 */
-	protected void checkRecipientDocumentEntry(DocumentEntry de, RecipientEntry recipient) throws IOException {
-		if (de.getName().startsWith(propsKey)) {
-			// TODO: parse properties stream
-			final List<DocumentEntry> deList = getDocumentEntriesFromPropertiesStream(de);
-			for (final DocumentEntry deFromProps : deList) {
-				final MessageProperty msgProp = getMessagePropertyFromDocumentEntry(deFromProps);
-				recipient.setProperty(msgProp);
-			}
+	protected void checkRecipientDocumentEntry(CompoundFile cf, int dir, int entry, RecipientEntry recipient,
+			Message msg) throws IOException {
+		if (cf.getName(entry).startsWith(propsKey)) {
+			this.parsePropertiesStream(cf, entry, propsHeaderSize, recipient);
 		} else {
-			final MessageProperty msgProp = getMessagePropertyFromDocumentEntry(de);
+			final MessageProperty msgProp = getMessagePropertyFromDocumentEntry(cf, dir, entry, msg);
 			recipient.setProperty(msgProp);
 		}
 	}
 
 	/**
-	 * Reads the bytes from the DocumentEntry. This is a convenience method that
-	 * calls {@see #getBytesFromStream(InputStream)} internally. It ensures that
-	 * the opened input stream is closed at the end.
+	 * Creates the {@link Message} object of a message attached to another
+	 * message. It is bound by the cancellation token of the message it is
+	 * attached to, which is only set while that message is being parsed.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the storage of the attached message.
+	 * @param msg
+	 *            The {@link Message} object the message is attached to.
+	 * @param usage
+	 *            The work done on the .msg file so far.
+	 * @return The attached message, holding only its code pages.
+	 * @throws IOException
+	 *             Thrown if the code pages could not be read.
+	 */
+	protected Message createEmbeddedMessage(CompoundFile cf, int dir, Message msg, ParseUsage usage)
+			throws IOException {
+		final Message attachmentMsg = new Message(rtf2htmlConverter);
+		attachmentMsg.cancellationToken = msg.cancellationToken;
+		// embedded messages share the named properties of the top level
+		// message
+		attachmentMsg.setNamedProperties(msg.getNamedProperties());
+		this.readCodePages(cf, dir, attachmentMsg, usage);
+		return attachmentMsg;
+	}
+
+	/**
+	 * Finishes the attached messages whose storages are still being walked
+	 * when the walk stops early, i.e. the message of the current storage and
+	 * those of all pending storages.
+	 *
+	 * @param current
+	 *            The storage the walk stopped at.
+	 * @param msg
+	 *            The message the walk started at, which is finished by the
+	 *            caller.
+	 * @param pending
+	 *            The storages that are not walked any more.
+	 */
+	private void finishAttachedMessages(PendingStorage current, Message msg, Deque<PendingStorage> pending) {
+		final Set<Message> open = Collections.newSetFromMap(new IdentityHashMap<>());
+		open.add(current.msg);
+		for (final PendingStorage storage : pending) {
+			open.add(storage.msg);
+		}
+		open.remove(msg);
+		for (final Message attachmentMsg : open) {
+			attachmentMsg.finishParsing();
+		}
+	}
+
+	/**
+	 * Reads the bytes from the DocumentEntry straight into an array of the size
+	 * of the entry. It ensures that the opened input stream is closed at the
+	 * end.
 	 *
 	 * @param de
 	 *            The document entry that should be read.
@@ -282,10 +538,12 @@ public class MsgParser {
 	 *             Thrown if the document entry could not be read.
 	 */
 	private byte[] getBytesFromDocumentEntry(DocumentEntry de) throws IOException {
-		InputStream is = null;
+		final byte[] bytes = new byte[de.getSize()];
+		DocumentInputStream is = null;
 		try {
 			is = new DocumentInputStream(de);
-			return this.getBytesFromStream(is);
+			is.readFully(bytes);
+			return bytes;
 		} finally {
 			if (is != null) {
 				try {
@@ -298,23 +556,117 @@ public class MsgParser {
 	}
 
 	/**
-	 * Reads the bytes from the stream to a byte array.
+	 * Reads the bytes from the stream straight into a byte array, which is
+	 * sized from the available bytes and only grown if the stream holds more.
+	 * The array is not copied to trim it to the length of the stream.
 	 *
 	 * @param dstream
 	 *            The stream to be read from.
-	 * @return An array of bytes.
+	 * @return A buffer wrapping the bytes read.
 	 * @throws IOException
 	 *             If the stream cannot be read properly.
 	 */
-	private byte[] getBytesFromStream(InputStream dstream) throws IOException {
-		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		final byte[] buffer = new byte[1024];
+	private ByteBuffer getBufferFromStream(InputStream dstream) throws IOException {
+		byte[] bytes = new byte[Math.max(dstream.available() + 1, streamReadMinSize)];
+		int length = 0;
 		int read = -1;
-		while ((read = dstream.read(buffer)) > 0) {
-			baos.write(buffer, 0, read);
+		while ((read = dstream.read(bytes, length, bytes.length - length)) >= 0) {
+			length += read;
+			if (length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+		}
+		return ByteBuffer.wrap(bytes, 0, length);
+	}
+
+	/**
+	 * Creates, based on the given MAPI type, the Java object representing the
+	 * raw data of a property (see {@link MapiCodec}). Binary data is returned
+	 * as-is.
+	 *
+	 * @param bytes
+	 *            The raw data of the property.
+	 * @param mapiType
+	 *            The MAPI type of the property.
+	 * @return The object representing the data or null if the type is not
+	 *         supported.
+	 * @throws IOException
+	 *             Thrown if the data could not be decoded.
+	 */
+	protected Object getData(byte[] bytes, int mapiType) throws IOException {
+		if (mapiType == 0x102) {
+			// binary data is returned as-is
+			return bytes;
+		}
+		return MapiCodec.decode(ByteBuffer.wrap(bytes), mapiType);
+	}
+
+	/**
+	 * Reads the information of a stream of a {@link CompoundFile} and
+	 * creates, based on the information in the {@link FieldInformation}
+	 * object, the Java object representing the data. Binary data is returned
+	 * as a read-only {@link ByteBuffer} which is a view of the compound file
+	 * wherever the sectors of the stream are stored contiguously.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param entry
+	 *            The index of the stream.
+	 * @param info
+	 *            The field information that is needed to determine the data
+	 *            type of the stream.
+	 * @return The object representing the data (see {@link MapiCodec}).
+	 * @throws IOException
+	 *             Thrown if the .msg file could not be parsed.
+	 */
+	protected Object getData(CompoundFile cf, int entry, FieldInformation info) throws IOException {
+		return this.getData(cf, entry, info, null);
+	}
+
+	/**
+	 * Reads the information of a stream of a {@link CompoundFile} like
+	 * {@link #getData(CompoundFile, int, FieldInformation)}, decoding 8 bit
+	 * strings with the given charset.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param entry
+	 *            The index of the stream.
+	 * @param info
+	 *            The field information that is needed to determine the data
+	 *            type of the stream.
+	 * @param string8Charset
+	 *            The charset of 8 bit strings or null for ISO-8859-1.
+	 * @return The object representing the data (see {@link MapiCodec}).
+	 * @throws IOException
+	 *             Thrown if the .msg file could not be parsed.
+	 */
+	protected Object getData(CompoundFile cf, int entry, FieldInformation info, Charset string8Charset)
+			throws IOException {
+		// if there is no field information available, we simply
+		// return null. in that case, we're not interested in the
+		// data anyway
+		if (info == null)
+			return null;
+
+		final int mapiType = info.getMapiType();
+
+		if (mapiType == FieldInformation.UNKNOWN_MAPITYPE) {
+			return null;
+		}
+		// the value is decoded directly from the stream, binary data is
+		// returned as the stream buffer itself
+		if (mapiType == 0x102) {
+			return MapiCodec.decode(cf.getStreamBuffer(entry), mapiType, string8Charset);
+		}
+		// any other value is copied while decoding, so the stream is only
+		// read into a pooled buffer
+		final ByteBuffer buffer = cf.getTransientStreamBuffer(entry);
+		try {
+			return MapiCodec.decode(buffer, mapiType, string8Charset);
+		} finally {
+			BufferPool.release(buffer);
 		}
-		final byte[] bytes = baos.toByteArray();
-		return bytes;
 	}
 
 	/**
@@ -340,11 +692,6 @@ public class MsgParser {
 		if (info == null)
 			return null;
 
-		// if the type is 001e (we know it is lower case
-		// because analyzeDocumentEntry stores the type in
-		// lower case), we create a String object from the data.
-		// the encoding of the binary data is most probably
-		// ISO-8859-1 (not pure ASCII).
 		final int mapiType = info.getMapiType();
 
 		switch (mapiType) {
@@ -353,30 +700,6 @@ public class MsgParser {
 				// null
 				// in that case, we're not interested in the data anyway
 				return null;
-			case 0x1e :
-				// we put the complete data into a byte[] object...
-				final byte[] textBytes1e = this.getBytesFromDocumentEntry(de);
-				// ...and create a String object from it
-				final String text1e = new String(textBytes1e, "ISO-8859-1");
-				return text1e;
-			case 0x1f :
-				// Unicode encoding with lowbyte followed by hibyte
-				// Note: this is arcane guesswork, but it works
-				final byte[] textBytes1f = this.getBytesFromDocumentEntry(de);
-				// now that we have all bytes from the stream,
-				// we can now convert the byte array into
-				// a character array by switching hi- and lowbytes
-				final char[] characters = new char[textBytes1f.length / 2];
-				int c = 0;
-				for (int i = 0; i < textBytes1f.length - 1; i = i + 2) {
-					final int ch = textBytes1f[i + 1];
-					final int cl = textBytes1f[i] & 0xff; // Using unsigned
-															// value (thanks to
-															// Reto Schuettel)
-					characters[c++] = (char) ((ch << 8) + cl);
-				}
-				final String text1f = new String(characters);
-				return text1f;
 			case 0x102 :
 				try {
 					// the data is read into a byte[] object
@@ -389,206 +712,382 @@ public class MsgParser {
 					// return an empty array here
 					return new byte[0];
 				}
-			case 0x40 :
-				// The following part has been provided by Morten Sørensen
-				// (Thanks!)
-
-				// This parsing has been lifted from the MsgViewer project
-				// https://sourceforge.net/projects/msgviewer/
-
-				// the data is read into a byte[] object
-				final byte[] bytes = this.getBytesFromDocumentEntry(de);
-				// Read the byte array as little endian byteorder
-				final ByteBuffer buff = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
-				buff.put(bytes);
-				// Convert the bytes to a long
-				// Nanoseconds since 1601
-				Long timeLong = buff.getLong(0);
-				// Convert to milliseconds
-				timeLong /= 10000L;
-				// Move the offset from since 1601 to 1970
-				timeLong -= 11644473600000L;
-				// Convert to a Date object, and return
-				return new Date(timeLong);
 			default :
-				// this should not happen
-				logger.fine("Unknown field type " + mapiType);
-				return null;
+				// we put the complete data into a byte[] object
+				// and create the matching object from it
+				return this.getData(this.getBytesFromDocumentEntry(de), mapiType);
 		}
 
 	}
 
 	/**
-	 * Parses a document entry which has been detected to be a stream of
-	 * document entries itself. This stream is identified by the key
-	 * "__properties_version1.0".
+	 * Reads a property from a stream of a {@link CompoundFile} and puts
+	 * it's type and data to a {@link MessageProperty} object.
 	 *
-	 * @param de
-	 *            The stream to be parsed.
-	 * @return A list of document entries for further processing.
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the storage containing the stream.
+	 * @param entry
+	 *            The index of the stream to be read.
+	 * @param msg
+	 *            The {@link Message} object the property belongs to, which
+	 *            takes care of the value if it is spilled to disk.
+	 * @return An object holding the type and data of the read property.
 	 * @throws IOException
-	 *             Thrown if the properties stream could not be parsed.
+	 *             In case the property could not be parsed.
 	 */
-	private List<DocumentEntry> getDocumentEntriesFromPropertiesStream(DocumentEntry de) throws IOException {
-		final List<DocumentEntry> result = new ArrayList<>();
-		DocumentInputStream dstream = null;
-		try {
-			dstream = new DocumentInputStream(de);
-
-			final int headerLength = 4;
-			final int flagsLength = 4;
-			byte[] bytes = new byte[headerLength];
-			while (dstream.read(bytes) == headerLength) {
-				final StringBuilder header = new StringBuilder();
-				for (int i = bytes.length - 1; i >= 0; i--) {
-					header.append(bytesToHex(new byte[]{bytes[i]}));
-				}
+	private MessageProperty getMessagePropertyFromDocumentEntry(CompoundFile cf, int dir, int entry, Message msg)
+			throws IOException {
+		final FieldInformation info = this.analyzeDocumentEntry(cf.getName(entry));
+		final Object data;
+		if (MapiCodec.isMultiValued(info.getMapiType())) {
+			data = this.getMultiValuedData(cf, dir, entry, info, msg);
+		} else if (lazy && (info.getMapiType() == 0x1e || info.getMapiType() == 0x1f || info.getMapiType() == 0x102)) {
+			// only the location is recorded, the stream is read on first
+			// access
+			data = new DeferredValue(cf, entry, info.getMapiType(), cf.getSize(entry), msg.string8Charset);
+		} else if (cf.getSize(entry) > spillThreshold && isSpillable(info)) {
+			data = this.spill(cf, entry, info, msg);
+		} else {
+			data = this.getData(cf, entry, info, msg.string8Charset);
+		}
+		if (logger.isLoggable(Level.FINEST)) {
+			logger.finest("  Document data: " + (data == null ? "null" : data.toString()));
+		}
+		return new MessageProperty(info.getTag(), data, (int) cf.getSize(entry));
+	}
+
+	/**
+	 * Reads the values of a multi-valued property. Values of fixed size types
+	 * are stored one after another in the given stream. For variable length
+	 * types, the stream only holds the lengths, while every value is stored
+	 * in a stream of its own whose name is the name of the given stream
+	 * followed by the hex index of the value (e.g.,
+	 * "__substg1.0_8001101F-00000000").
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the storage containing the stream.
+	 * @param entry
+	 *            The index of the stream.
+	 * @param info
+	 *            The field information of the stream.
+	 * @param msg
+	 *            The {@link Message} object the property belongs to, whose
+	 *            code page 8 bit strings are decoded with.
+	 * @return An array holding the values (see {@link MapiCodec}) or null if
+	 *         the type is not supported.
+	 * @throws IOException
+	 *             Thrown if the .msg file could not be parsed.
+	 */
+	protected Object getMultiValuedData(CompoundFile cf, int dir, int entry, FieldInformation info, Message msg)
+			throws IOException {
+		final int mapiType = info.getMapiType();
+		final int lengthEntrySize = MapiCodec.getLengthEntrySize(mapiType);
+		if (lengthEntrySize == 0) {
+			final ByteBuffer buffer = cf.getTransientStreamBuffer(entry);
+			final Object data;
+			try {
+				data = MapiCodec.decodeMultiValued(buffer, mapiType);
+			} finally {
+				BufferPool.release(buffer);
+			}
+			if (data == null) {
+				logger.fine("Unknown field type " + mapiType);
+			}
+			return data;
+		}
 
-				// header ready for use
-				final String type = header.substring(4);
-				final String clazz = header.substring(0, 4);
+		// every value stream is a sibling of the length stream, they are
+		// collected in a single pass over the storage
+		final int count = (int) Math.min(cf.getSize(entry) / lengthEntrySize, cf.getChildCount(dir));
+		final int[] valueStreams = new int[count];
+		Arrays.fill(valueStreams, -1);
+		final String name = cf.getName(entry);
+		for (int i = 0; i < cf.getChildCount(dir); i++) {
+			final int child = cf.getChild(dir, i);
+			final String childName = cf.getName(child);
+			if (childName.length() == name.length() + 9 && childName.charAt(name.length()) == '-'
+					&& childName.startsWith(name)) {
+				final int index = parseHex(childName, name.length() + 1);
+				if (index >= 0 && index < count && cf.isStream(child)) {
+					valueStreams[index] = child;
+				}
+			}
+		}
 
-				int typeNumber = -1;
+		final int valueType = mapiType & ~MapiCodec.MV_FLAG;
+		final Object[] values = valueType == 0x102 ? new ByteBuffer[count] : new String[count];
+		for (int i = 0; i < count; i++) {
+			if (valueStreams[i] >= 0 && valueType == 0x102) {
+				values[i] = MapiCodec.decode(cf.getStreamBuffer(valueStreams[i]), valueType, msg.string8Charset);
+			} else if (valueStreams[i] >= 0) {
+				final ByteBuffer buffer = cf.getTransientStreamBuffer(valueStreams[i]);
 				try {
-					typeNumber = Integer.parseInt(type, 16);
-				} catch (final NumberFormatException e) {
-					logger.log(Level.FINEST, "Unexpected type: " + type);
+					values[i] = MapiCodec.decode(buffer, valueType, msg.string8Charset);
+				} finally {
+					BufferPool.release(buffer);
 				}
-
-				if (!clazz.equals("0000")) {
-					// reading and ignoring flags
-					bytes = new byte[flagsLength];
-					dstream.read(bytes);
-					// System.out.println("flags: " + bytesToHex(bytes));
-
-					// reading data
-					if (typeNumber == 0x48 // CLSID
-							|| typeNumber == 0x1e // STRING
-							|| typeNumber == 0x1f // UNICODE STRING
-							|| typeNumber == 0xd // OBJECT
-							|| typeNumber == 0x102) { // BINARY
-						// found datatype with variable length, thus the value
-						// is stored in a separate string
-						// no data available inside the properties stream
-						// reading and ignoring size
-						bytes = null;
-						dstream.read(new byte[4]);
-					} else if (typeNumber == 0x3 // INT
-							|| typeNumber == 0x4 // FLOAT
-							|| typeNumber == 0xa // ERROR
-							|| typeNumber == 0xb // BOOLEAN
-							|| typeNumber == 0x2) { // SHORT
-						// 4 bytes
-						bytes = new byte[4];
-						dstream.read(bytes);
-						dstream.read(bytes); // read and ignore padding
-					} else if (typeNumber == 0x5 // DOUBLE
-							|| typeNumber == 0x7 // APPTIME
-							|| typeNumber == 0x6 // CURRENCY
-							|| typeNumber == 0x14 // INT8BYTE
-							|| typeNumber == 0x40) { // SYSTIME
-						// 8 bytes
-						bytes = new byte[8];
-						dstream.read(bytes);
-					}
-					// stream ready for use
-
-					if (bytes != null) {
-						// creating new document entry for later processing of
-						// all document entries
-						final POIFSFileSystem poifs = new POIFSFileSystem();
-						result.add(poifs.createDocument(new ByteArrayInputStream(bytes),
-								"__substg1.0_" + header.toString()));
-					}
+			}
+			if (values[i] instanceof String) {
+				// the string values include their terminating null character
+				final String value = (String) values[i];
+				int length = value.length();
+				while (length > 0 && value.charAt(length - 1) == 0) {
+					length--;
 				}
+				values[i] = value.substring(0, length);
+			}
+		}
+		return values;
+	}
 
-				// start over with new byte[] for next header
-				bytes = new byte[headerLength];
+	/**
+	 * Reads the mapping of the named properties from the
+	 * "__nameid_version1.0" storage below the given storage. Mappings that
+	 * have already been decoded for another message with the same storage
+	 * content are reused.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the root storage of the message.
+	 * @param usage
+	 *            The work done on the .msg file so far.
+	 * @return The mapping, which is empty if there is no such storage.
+	 * @throws IOException
+	 *             Thrown if the .msg file could not be parsed.
+	 */
+	protected NamedPropertyMapping getNamedProperties(CompoundFile cf, int dir, ParseUsage usage)
+			throws IOException {
+		int nameid = -1;
+		for (int i = 0; i < cf.getChildCount(dir) && nameid < 0; i++) {
+			final int entry = cf.getChild(dir, i);
+			if (cf.isStorage(entry) && cf.getName(entry).startsWith(namedPropertiesKey)) {
+				nameid = entry;
 			}
+		}
+		if (nameid < 0) {
+			return NamedPropertyMapping.EMPTY;
+		}
 
-			return result;
+		final ByteBuffer empty = ByteBuffer.allocate(0);
+		ByteBuffer guids = empty;
+		ByteBuffer entries = empty;
+		ByteBuffer strings = empty;
+		for (int i = 0; i < cf.getChildCount(nameid); i++) {
+			final int entry = cf.getChild(nameid, i);
+			if (!cf.isStream(entry)) {
+				continue;
+			}
+			switch (getTag(cf.getName(entry))) {
+				case 0x00020102 :
+					guids = cf.getStreamBuffer(entry);
+					usage.bytes += guids.remaining();
+					break;
+				case 0x00030102 :
+					entries = cf.getStreamBuffer(entry);
+					usage.bytes += entries.remaining();
+					break;
+				case 0x00040102 :
+					strings = cf.getStreamBuffer(entry);
+					usage.bytes += strings.remaining();
+					break;
+			}
+		}
+		final int length = guids.remaining() + entries.remaining() + strings.remaining();
+		if (length > namedPropertiesCacheMaxKeySize) {
+			return NamedPropertyMapping.decode(guids, entries, strings);
+		}
 
-		} finally {
-			if (dstream != null) {
-				try {
-					dstream.close();
-				} catch (final Exception e) {
-					logger.fine("Could not close input stream of document entry: " + de + ": " + e.getMessage());
-				}
+		// the key holds the content of all three streams
+		final ByteBuffer key = ByteBuffer.allocate(length + 8);
+		key.putInt(guids.remaining()).put(guids.duplicate());
+		key.putInt(entries.remaining()).put(entries.duplicate());
+		key.put(strings.duplicate());
+		key.flip();
+		NamedPropertyMapping mapping = namedPropertiesCache.get(key);
+		if (mapping == null) {
+			mapping = NamedPropertyMapping.decode(guids, entries, strings);
+			if (namedPropertiesCache.size() < namedPropertiesCacheSize) {
+				namedPropertiesCache.put(key, mapping);
 			}
 		}
+		return mapping;
+	}
 
+	/**
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of a storage.
+	 * @return The total size of the streams directly below the storage,
+	 *         except for the data of an attachment, which is only counted
+	 *         when it is read.
+	 */
+	private static long getStreamSizes(CompoundFile cf, int dir) {
+		long size = 0;
+		for (int i = 0; i < cf.getChildCount(dir); i++) {
+			final int entry = cf.getChild(dir, i);
+			if (getTag(cf.getName(entry)) != 0x37010102) {
+				size += cf.getSize(entry);
+			}
+		}
+		return size;
 	}
 
 	/**
-	 * Reads a property from a document entry and puts it's type and data to a
-	 * {@link MessageProperty} object.
+	 * Determines the property tag from the name of a property stream (e.g.,
+	 * "__substg1.0_0037001F") without creating any intermediate strings.
 	 *
-	 * @param de
-	 *            The {@link DocumentEntry} to be read.
-	 * @return An object holding the type and data of the read property.
-	 * @throws IOException
-	 *             In case the property could not be parsed.
+	 * @param name
+	 *            The name of the document entry.
+	 * @return The property tag, i.e., the class in the upper and the mapi
+	 *         type in the lower 16 bits, or {@link FieldInformation#UNKNOWN_TAG}
+	 *         (-1) if the name does not denote a property stream.
+	 */
+	private static int getTag(String name) {
+		final int start = propertyStreamPrefix.length();
+		if (name.length() != start + 8 || !name.startsWith(propertyStreamPrefix)) {
+			return FieldInformation.UNKNOWN_TAG;
+		}
+		return parseHex(name, start);
+	}
+
+	/**
+	 * @param name
+	 *            The name of a stream.
+	 * @return Whether the stream is read by
+	 *         {@link #parseEnvelope(CompoundFile, int, Message)}.
+	 */
+	private static boolean isEnvelopeStream(String name) {
+		final int tag = getTag(name);
+		return name.startsWith(propsKey)
+				|| tag != FieldInformation.UNKNOWN_TAG && envelopeOptions.includesProperty(tag >>> 16);
+	}
+
+	/**
+	 * Checks whether a value may be spilled to disk (see
+	 * {@link #setSpillThreshold(long)}). Only binary values (e.g., the
+	 * attachment data) and the plain text and HTML bodies are spilled, other
+	 * strings are short and read too often to be decoded from a file on every
+	 * access.
+	 *
+	 * @param info
+	 *            The property of the stream.
+	 * @return Whether the value may be spilled.
+	 */
+	private static boolean isSpillable(FieldInformation info) {
+		final int code = info.getTag() >>> 16;
+		return info.getMapiType() == 0x102
+				|| (info.getMapiType() == 0x1e || info.getMapiType() == 0x1f) && (code == 0x1000 || code == 0x1013);
+	}
+
+	/**
+	 * Checks whether a property of a message is selected by the
+	 * {@link #parseOptions}.
+	 *
+	 * @param tag
+	 *            The tag of the property.
+	 * @return Whether the property should be read.
+	 */
+	private boolean isIncluded(int tag) {
+		return parseOptions == null || tag != FieldInformation.UNKNOWN_TAG && parseOptions.includesProperty(tag >>> 16);
+	}
+
+	/**
+	 * Counts a storage as walked and finishes its message, if it is an
+	 * attached message none of whose storages is pending any more.
+	 *
+	 * @param current
+	 *            The storage that has been walked.
+	 * @param msg
+	 *            The message the walk started at, which is finished by the
+	 *            caller.
+	 * @param pendingCounts
+	 *            The number of pending storages of every message.
 	 */
-	private MessageProperty getMessagePropertyFromDocumentEntry(DocumentEntry de) throws IOException {
-		// analyze the document entry
-		// (i.e., get class and data type)
-		final FieldInformation info = this.analyzeDocumentEntry(de);
-		// create a Java object from the data provided
-		// by the input stream. depending on the field
-		// information, either a String or a byte[] will
-		// be returned. other datatypes are not yet supported
-		final Object data = this.getData(de, info);
-		logger.finest("  Document data: " + (data == null ? "null" : data.toString()));
-		return new MessageProperty(info.getClazz(), data, de.getSize());
+	private void leaveStorage(PendingStorage current, Message msg, Map<Message, Integer> pendingCounts) {
+		if (pendingCounts.merge(current.msg, -1, Integer::sum) == 0 && current.msg != msg) {
+			current.msg.finishParsing();
+		}
 	}
 
 	/**
-	 * Creates an {@link Attachment} object based on the given directory entry.
-	 * The entry may either point to an attached file or to an attached .msg
-	 * file, which will be added as a {@link MsgAttachment} object instead.
+	 * Creates an {@link Attachment} object based on the given storage. The
+	 * storage may either hold an attached file or an attached .msg file,
+	 * which will be added as a {@link MsgAttachment} object instead. The data
+	 * of an attached file is read after all other properties, and only if the
+	 * attachment passes the {@link #attachmentFilter}.
 	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
 	 * @param dir
-	 *            The directory entry containing the attachment document entry
-	 *            and some other document entries describing the attachment
-	 *            (name, extension, mime type, ...)
+	 *            The index of the storage containing the attachment document
+	 *            entry and some other document entries describing the
+	 *            attachment (name, extension, mime type, ...)
 	 * @param msg
 	 *            The {@link Message} object that this attachment should be
 	 *            added to.
+	 * @param depth
+	 *            The nesting depth of the storage holding the attachment.
+	 * @param pending
+	 *            The storages still to be parsed, the storage of an attached
+	 *            .msg file is added to it unless it is parsed lazily.
+	 * @param usage
+	 *            The work done on the .msg file so far, the data is only read
+	 *            if it fits into the {@link #parseBudget}.
 	 * @throws IOException
 	 *             Thrown if the attachment could not be parsed/read.
 	 */
-	protected void parseAttachment(DirectoryEntry dir, Message msg) throws IOException {
+	protected void parseAttachment(CompoundFile cf, int dir, Message msg, int depth, Deque<PendingStorage> pending,
+			ParseUsage usage) throws IOException {
 
 		final FileAttachment attachment = new FileAttachment();
+		int dataEntry = -1;
 
-		// iterate through all document entries
-		for (final Iterator<?> iter = dir.getEntries(); iter.hasNext();) {
-			final Entry entry = (Entry) iter.next();
-			if (entry.isDocumentEntry()) {
-
-				// the document entry may contain information
-				// about the attachment
-				final DocumentEntry de = (DocumentEntry) entry;
-				final MessageProperty msgProp = getMessagePropertyFromDocumentEntry(de);
-
-				// we provide the class and data of the document
-				// entry to the attachment. the attachment implementation
-				// has to know the semantics of the field names
+		// iterate through all entries of the attachment storage
+		for (int i = 0; i < cf.getChildCount(dir); i++) {
+			checkCancelled(msg);
+			final int entry = cf.getChild(dir, i);
+			if (cf.isStream(entry) && cf.getName(entry).startsWith(propsKey)) {
+				this.parsePropertiesStream(cf, entry, propsHeaderSize, attachment);
+			} else if (cf.isStream(entry) && getTag(cf.getName(entry)) == 0x37010102) {
+				// the data is read once the metadata is known, only its size
+				// is taken from the directory for now
+				dataEntry = entry;
+				attachment.setSize(cf.getSize(entry));
+			} else if (cf.isStream(entry)) {
+				final MessageProperty msgProp = getMessagePropertyFromDocumentEntry(cf, dir, entry, msg);
 				attachment.setProperty(msgProp);
-
-			} else {
-
-				// a directory within the attachment directory
-				// entry means that a .msg file is attached
-				// at this point. we recursively parse
-				// this .msg file and add it as a MsgAttachment
-				// object to the current Message object.
-				final Message attachmentMsg = new Message();
+			} else if (cf.isStorage(entry)) {
+				// an attached .msg file, parsed after the current storage or,
+				// in lazy mode, on first access
 				final MsgAttachment msgAttachment = new MsgAttachment();
-				msgAttachment.setMessage(attachmentMsg);
+				if (lazy) {
+					msgAttachment.setMessageLoader(() -> {
+						try {
+							return this.parseEmbeddedMessage(cf, entry, msg, depth + 1);
+						} catch (final IOException e) {
+							throw new UncheckedIOException("Could not parse attached message", e);
+						}
+					});
+				} else {
+					final Message attachmentMsg = this.createEmbeddedMessage(cf, entry, msg, usage);
+					msgAttachment.setMessage(attachmentMsg);
+					pending.push(new PendingStorage(entry, attachmentMsg, depth + 1));
+				}
 				msg.addAttachment(msgAttachment);
-				this.checkDirectoryEntry((DirectoryEntry) entry, attachmentMsg);
+			}
+		}
+
+		if (dataEntry >= 0 && (parseOptions == null || parseOptions.includesAttachmentData())
+				&& (attachmentFilter == null || attachmentFilter.test(attachment))) {
+			usage.bytes += cf.getSize(dataEntry);
+			if (usage.getExceededLimit(parseBudget) == null) {
+				attachment.setProperty(getMessagePropertyFromDocumentEntry(cf, dir, dataEntry, msg));
 			}
 		}
 
@@ -597,22 +1096,340 @@ public class MsgParser {
 		if (attachment.getSize() > -1) {
 			msg.addAttachment(attachment);
 		}
+	}
 
+	/**
+	 * Parses a message attached to another message.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the storage of the attached message.
+	 * @param msg
+	 *            The {@link Message} object the message is attached to.
+	 * @param depth
+	 *            The nesting depth of the storage of the attached message.
+	 * @return The attached message.
+	 * @throws IOException
+	 *             Thrown if the message could not be parsed.
+	 */
+	protected Message parseEmbeddedMessage(CompoundFile cf, int dir, Message msg, int depth) throws IOException {
+		// the message is parsed on its own, so it gets a budget of its own
+		final ParseUsage usage = new ParseUsage();
+		final Message attachmentMsg = this.createEmbeddedMessage(cf, dir, msg, usage);
+		this.checkDirectoryEntry(cf, dir, attachmentMsg, false, depth, usage);
+		attachmentMsg.finishParsing();
+		return attachmentMsg;
 	}
 
 	/**
-	 * Parses a .msg file provided in the specified file.
+	 * Reads the envelope of a message (see {@link ParseOptions#ENVELOPE}),
+	 * i.e. the properties stream and the streams of the envelope properties,
+	 * but neither the recipients nor the attachments. The envelope is read
+	 * regardless of the {@link #parseOptions}.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the storage of the message.
+	 * @param msg
+	 *            The resulting {@link Message} object.
+	 * @param usage
+	 *            The work done on the .msg file so far.
+	 * @throws IOException
+	 *             Thrown if the .msg file could not be parsed.
+	 */
+	protected void parseEnvelope(CompoundFile cf, int dir, Message msg, ParseUsage usage) throws IOException {
+		for (int i = 0; i < cf.getChildCount(dir); i++) {
+			final int entry = cf.getChild(dir, i);
+			final String name = cf.getName(entry);
+			if (!cf.isStream(entry) || !isEnvelopeStream(name)) {
+				continue;
+			}
+			usage.entries++;
+			usage.bytes += cf.getSize(entry);
+			if (name.startsWith(propsKey)) {
+				this.parsePropertiesStream(cf, entry,
+						dir == CompoundFile.ROOT ? topLevelPropsHeaderSize : embeddedPropsHeaderSize, msg);
+			} else {
+				msg.setProperty(getMessagePropertyFromDocumentEntry(cf, dir, entry, msg));
+			}
+		}
+	}
+
+	/**
+	 * Parses the content of a "__properties_version1.0" stream. The values of
+	 * fixed size properties are decoded directly from the stream and set on
+	 * the given target, properties of variable length are skipped since they
+	 * are stored in separate streams.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param entry
+	 *            The index of the properties stream.
+	 * @param headerSize
+	 *            The size of the header preceding the property entries, which
+	 *            depends on the storage the stream belongs to.
+	 * @param target
+	 *            The object the properties are set on.
+	 * @throws IOException
+	 *             Thrown if the properties stream could not be read.
+	 */
+	protected void parsePropertiesStream(CompoundFile cf, int entry, int headerSize, PropertyContainer target)
+			throws IOException {
+		final ByteBuffer props = cf.getTransientStreamBuffer(entry);
+		try {
+			final int start = props.position();
+			final int end = props.limit();
+			// every entry consists of the property tag, 4 bytes of flags and
+			// an 8 byte value
+			for (int offset = start + headerSize; offset + propsEntrySize <= end; offset += propsEntrySize) {
+				final int tag = props.getInt(offset);
+				final int mapiType = tag & 0xffff;
+				final Object data = MapiCodec.decodeFixed(props, offset + 8, mapiType);
+				if (data != null) {
+					if (logger.isLoggable(Level.FINEST)) {
+						logger.finest("  Property data: " + data);
+					}
+					target.setProperty(new MessageProperty(tag, data, MapiCodec.getFixedSize(mapiType)));
+				}
+			}
+		} finally {
+			BufferPool.release(props);
+		}
+	}
+
+	/**
+	 * Parses the 8 hex digits found at the given position of a name.
+	 *
+	 * @param name
+	 *            The name holding the hex digits.
+	 * @param start
+	 *            The position of the first digit.
+	 * @return The parsed value or -1 if the characters are not hex digits.
+	 */
+	private static int parseHex(String name, int start) {
+		int value = 0;
+		for (int i = start; i < start + 8; i++) {
+			final int digit = Character.digit(name.charAt(i), 16);
+			if (digit < 0) {
+				return -1;
+			}
+			value = value << 4 | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Parses a .msg file held in memory. The buffer is read from its current
+	 * position up to its limit and is not modified. Binary properties (e.g.,
+	 * the data of a {@link FileAttachment} or the compressed RTF body) are
+	 * kept as read-only {@link ByteBuffer} views of the given buffer wherever
+	 * their sectors are stored contiguously, so the content of the buffer must
+	 * not be changed while the message is in use. They are handed out without
+	 * copying by {@link Message#getPropertyBuffer(int)} and
+	 * {@link FileAttachment#getDataBuffer()}.
+	 *
+	 * @param msgBuffer
+	 *            The .msg file as a ByteBuffer.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
+	 * @throws IOException
+	 *             Thrown if the file could not be parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file cannot be parsed correctly.
+	 */
+	public Message parseMsg(ByteBuffer msgBuffer) throws IOException, UnsupportedOperationException {
+		return this.parseMsg(msgBuffer, null);
+	}
+
+	/**
+	 * Parses a .msg file held in memory like {@link #parseMsg(ByteBuffer)},
+	 * but stops once the given token is cancelled.
+	 *
+	 * @param msgBuffer
+	 *            The .msg file as a ByteBuffer.
+	 * @param token
+	 *            The token checked while parsing or null (see
+	 *            {@link #parseMsg(File, CancellationToken)}).
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
+	 * @throws IOException
+	 *             Thrown if the file could not be parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file cannot be parsed correctly.
+	 * @throws CancellationException
+	 *             Thrown if the token has been cancelled.
+	 */
+	public Message parseMsg(ByteBuffer msgBuffer, CancellationToken token)
+			throws IOException, UnsupportedOperationException, CancellationException {
+		return this.parseMsg(new CompoundFileReader(msgBuffer), token);
+	}
+
+	/**
+	 * Parses an already opened compound file. The compound file is not closed
+	 * by this method. In lazy mode, it is closed by {@link Message#close()}
+	 * instead.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the {@link #filter}.
+	 * @throws IOException
+	 *             Thrown if the file could not be parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file cannot be parsed correctly.
+	 */
+	protected Message parseMsg(CompoundFile cf) throws IOException, UnsupportedOperationException {
+		return this.parseMsg(cf, null);
+	}
+
+	/**
+	 * Parses an already opened compound file like
+	 * {@link #parseMsg(CompoundFile)}, but stops once the given token is
+	 * cancelled.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param token
+	 *            The token checked while parsing or null.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the {@link #filter}.
+	 * @throws IOException
+	 *             Thrown if the file could not be parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file cannot be parsed correctly.
+	 * @throws CancellationException
+	 *             Thrown if the token has been cancelled.
+	 */
+	protected Message parseMsg(CompoundFile cf, CancellationToken token)
+			throws IOException, UnsupportedOperationException, CancellationException {
+		// the .msg file, like a file system, contains directories
+		// and documents within this directories
+		// we now gain access to the root node
+		// and recursively go through the complete 'filesystem'.
+		final Message msg = new Message(rtf2htmlConverter);
+		// the token is held by the message rather than by the parser, so
+		// concurrent calls do not share it. it is dropped from the message
+		// once parsing is over
+		msg.cancellationToken = token;
+		// every stream read counts against the parse budget, including those
+		// read before the walk
+		final ParseUsage usage = new ParseUsage();
+		boolean parsed = false;
+		try {
+			this.readCodePages(cf, CompoundFile.ROOT, msg, usage);
+			if (parseOptions == null || parseOptions.includesNamedProperties()) {
+				msg.setNamedProperties(this.getNamedProperties(cf, CompoundFile.ROOT, usage));
+			}
+			if (filter != null) {
+				// the envelope is read first, so rejected messages are not
+				// parsed any further
+				this.parseEnvelope(cf, CompoundFile.ROOT, msg, usage);
+				if (!filter.test(msg)) {
+					return null;
+				}
+			}
+			this.checkDirectoryEntry(cf, CompoundFile.ROOT, msg, filter != null, 0, usage);
+			parsed = true;
+		} finally {
+			msg.releaseCancellationToken();
+			if (!parsed) {
+				// the message is not returned, so the temporary files of the
+				// values spilled so far are deleted here
+				try {
+					msg.close();
+				} catch (final IOException e) {
+					logger.log(Level.FINE, "Could not close rejected or failed message", e);
+				}
+			}
+		}
+		msg.finishParsing();
+		if (lazy) {
+			msg.source = cf;
+		}
+		return msg;
+	}
+
+	/**
+	 * Parses a .msg file provided in the specified file. The file is mapped
+	 * into memory read-only, so only the sectors of the streams that are
+	 * actually decoded are read instead of copying the whole file into memory
+	 * first. If POI is used (see {@link #setUsePoi(boolean)}), the sectors are
+	 * read through the file channel on demand instead. Binary values (see
+	 * {@link Message#getPropertyBuffer(int)}) are copied out of the mapping,
+	 * so the returned message does not refer to the file. Only in lazy mode,
+	 * the file stays open (and mapped) until the returned message is closed.
 	 *
 	 * @param msgFile
 	 *            The .msg file.
-	 * @return A {@link Message} object representing the .msg file.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
 	 * @throws IOException
 	 *             Thrown if the file could not be loaded or parsed.
 	 * @throws UnsupportedOperationException
 	 *             Thrown if the .msg file cannot be parsed correctly.
 	 */
 	public Message parseMsg(File msgFile) throws IOException, UnsupportedOperationException {
-		return this.parseMsg(new FileInputStream(msgFile), true);
+		return this.parseMsg(msgFile, null);
+	}
+
+	/**
+	 * Parses a .msg file like {@link #parseMsg(File)}, but stops once the
+	 * given token is cancelled, e.g. from another thread or after a deadline
+	 * (see {@link CancellationToken#withTimeout(long,
+	 * java.util.concurrent.TimeUnit)}). The token is checked for every entry
+	 * of the .msg file and while the RTF body is decompressed, but only
+	 * during this call. Work done on the parsed message later (e.g., by
+	 * {@link Message#getConvertedBodyHTML()} or by parsing an attached
+	 * message in lazy mode) is not bound by the token, use
+	 * {@link Message#getConvertedBodyHTML(CancellationToken)} to convert the
+	 * RTF body under a token of its own.
+	 *
+	 * @param msgFile
+	 *            The .msg file.
+	 * @param token
+	 *            The token checked while parsing or null.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
+	 * @throws IOException
+	 *             Thrown if the file could not be loaded or parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file cannot be parsed correctly.
+	 * @throws CancellationException
+	 *             Thrown if the token has been cancelled.
+	 */
+	public Message parseMsg(File msgFile, CancellationToken token)
+			throws IOException, UnsupportedOperationException, CancellationException {
+		final CompoundFile cf;
+		if (usePoi || msgFile.length() > Integer.MAX_VALUE) {
+			// files that are too large to be mapped at once are left to POI
+			cf = new PoiCompoundFile(new POIFSFileSystem(msgFile, true));
+		} else {
+			final CompoundFileReader reader = CompoundFileReader.open(msgFile);
+			// the mapping must not outlive the parsed message, unless the
+			// message reads from the file on demand anyway
+			reader.setCopyStreams(!lazy);
+			cf = reader;
+		}
+		boolean parsed = false;
+		try {
+			final Message msg = this.parseMsg(cf, token);
+			parsed = msg != null;
+			return msg;
+		} finally {
+			if (!parsed || !lazy) {
+				try {
+					cf.close();
+				} catch (final Exception e) {
+					logger.fine("Could not close file system of " + msgFile + ": " + e.getMessage());
+				}
+			}
+		}
 	}
 
 	/**
@@ -620,7 +1437,9 @@ public class MsgParser {
 	 *
 	 * @param msgFileStream
 	 *            The .msg file as a InputStream.
-	 * @return A {@link Message} object representing the .msg file.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
 	 * @throws IOException
 	 *             Thrown if the file could not be loaded or parsed.
 	 * @throws UnsupportedOperationException
@@ -638,7 +1457,9 @@ public class MsgParser {
 	 * @param closeStream
 	 *            Indicates whether the provided stream should be closed after
 	 *            the message has been read.
-	 * @return A {@link Message} object representing the .msg file.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
 	 * @throws IOException
 	 *             Thrown if the file could not be loaded or parsed.
 	 * @throws UnsupportedOperationException
@@ -646,16 +1467,41 @@ public class MsgParser {
 	 */
 	public Message parseMsg(InputStream msgFileStream, boolean closeStream)
 			throws IOException, UnsupportedOperationException {
-		// the .msg file, like a file system, contains directories
-		// and documents within this directories
-		// we now gain access to the root node
-		// and recursively go through the complete 'filesystem'.
+		return this.parseMsg(msgFileStream, closeStream, null);
+	}
+
+	/**
+	 * Parses a .msg file provided by an input stream like
+	 * {@link #parseMsg(InputStream, boolean)}, but stops once the given token
+	 * is cancelled.
+	 *
+	 * @param msgFileStream
+	 *            The .msg file as a InputStream.
+	 * @param closeStream
+	 *            Indicates whether the provided stream should be closed after
+	 *            the message has been read.
+	 * @param token
+	 *            The token checked while parsing or null (see
+	 *            {@link #parseMsg(File, CancellationToken)}).
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
+	 * @throws IOException
+	 *             Thrown if the file could not be loaded or parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file cannot be parsed correctly.
+	 * @throws CancellationException
+	 *             Thrown if the token has been cancelled.
+	 */
+	public Message parseMsg(InputStream msgFileStream, boolean closeStream, CancellationToken token)
+			throws IOException, UnsupportedOperationException, CancellationException {
 		Message msg = null;
 		try {
-			final POIFSFileSystem fs = new POIFSFileSystem(msgFileStream);
-			final DirectoryEntry dir = fs.getRoot();
-			msg = new Message(rtf2htmlConverter);
-			this.checkDirectoryEntry(dir, msg);
+			if (usePoi) {
+				msg = this.parseMsg(new PoiCompoundFile(new POIFSFileSystem(msgFileStream)), token);
+			} else {
+				msg = this.parseMsg(this.getBufferFromStream(msgFileStream), token);
+			}
 		} finally {
 			if (closeStream) {
 				try {
@@ -673,14 +1519,195 @@ public class MsgParser {
 	 *
 	 * @param msgFile
 	 *            The .msg file as a String path.
-	 * @return A {@link Message} object representing the .msg file.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
 	 * @throws IOException
 	 *             Thrown if the file could not be loaded or parsed.
 	 * @throws UnsupportedOperationException
 	 *             Thrown if the .msg file cannot be parsed correctly.
 	 */
 	public Message parseMsg(String msgFile) throws IOException, UnsupportedOperationException {
-		return this.parseMsg(new FileInputStream(msgFile), true);
+		return this.parseMsg(new File(msgFile));
+	}
+
+	/**
+	 * Parses a .msg file provided in the specified path. See
+	 * {@link #parseMsg(File)} for details on how the file is accessed.
+	 *
+	 * @param msgFile
+	 *            The path of the .msg file.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
+	 * @throws IOException
+	 *             Thrown if the file could not be loaded or parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file cannot be parsed correctly.
+	 */
+	public Message parseMsg(Path msgFile) throws IOException, UnsupportedOperationException {
+		return this.parseMsg(msgFile.toFile());
+	}
+
+	/**
+	 * Parses a .msg file provided in the specified path like
+	 * {@link #parseMsg(Path)}, but stops once the given token is cancelled.
+	 *
+	 * @param msgFile
+	 *            The path of the .msg file.
+	 * @param token
+	 *            The token checked while parsing or null (see
+	 *            {@link #parseMsg(File, CancellationToken)}).
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
+	 * @throws IOException
+	 *             Thrown if the file could not be loaded or parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file cannot be parsed correctly.
+	 * @throws CancellationException
+	 *             Thrown if the token has been cancelled.
+	 */
+	public Message parseMsg(Path msgFile, CancellationToken token)
+			throws IOException, UnsupportedOperationException, CancellationException {
+		return this.parseMsg(msgFile.toFile(), token);
+	}
+
+	/**
+	 * Parses an already opened .msg file system. The file system is not closed
+	 * by this method.
+	 *
+	 * @param fs
+	 *            The file system holding the .msg file.
+	 * @return A {@link Message} object representing the .msg file or null if
+	 *         it has been rejected by the filter (see
+	 *         {@link #setFilter(Predicate)}).
+	 * @throws IOException
+	 *             Thrown if the file could not be parsed.
+	 * @throws UnsupportedOperationException
+	 *             Thrown if the .msg file cannot be parsed correctly.
+	 */
+	protected Message parseMsg(POIFSFileSystem fs) throws IOException, UnsupportedOperationException {
+		return this.parseMsg(new PoiCompoundFile(fs));
+	}
+
+	/**
+	 * Reads the code pages of a message from its properties stream before
+	 * any other stream, since the streams of its 8 bit strings and its HTML
+	 * body may come first (see {@link Message#getString8Charset()} and
+	 * {@link Message#getInternetCharset()}).
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param dir
+	 *            The index of the storage of the message.
+	 * @param msg
+	 *            The {@link Message} object the code pages are set on.
+	 * @param usage
+	 *            The work done on the .msg file so far.
+	 * @throws IOException
+	 *             Thrown if the properties stream could not be read.
+	 */
+	protected void readCodePages(CompoundFile cf, int dir, Message msg, ParseUsage usage) throws IOException {
+		for (int i = 0; i < cf.getChildCount(dir); i++) {
+			final int entry = cf.getChild(dir, i);
+			if (cf.isStream(entry) && cf.getName(entry).startsWith(propsKey)) {
+				usage.bytes += cf.getSize(entry);
+				final ByteBuffer props = cf.getTransientStreamBuffer(entry);
+				try {
+					final int headerSize = dir == CompoundFile.ROOT ? topLevelPropsHeaderSize : embeddedPropsHeaderSize;
+					final int end = props.limit();
+					for (int offset = props.position() + headerSize; offset + propsEntrySize <= end; offset += propsEntrySize) {
+						final int tag = props.getInt(offset);
+						if (tag == 0x3ffd0003) { // MESSAGE CODEPAGE
+							msg.string8Charset = StringDecoder.getCharset(props.getInt(offset + 8));
+						} else if (tag == 0x3fde0003) { // INTERNET CPID
+							msg.internetCharset = StringDecoder.getCharset(props.getInt(offset + 8));
+						}
+					}
+				} finally {
+					BufferPool.release(props);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sets a filter on the metadata of file attachments (e.g., an
+	 * {@link AttachmentFilter}). The data of an attachment is only read if
+	 * the filter accepts its filename, extension, MIME type and size, which is
+	 * taken from the directory. Rejected attachments are still added to the
+	 * message, but without their data.
+	 *
+	 * @param attachmentFilter
+	 *            The filter or null to read the data of all attachments,
+	 *            which is the default.
+	 */
+	public void setAttachmentFilter(Predicate<FileAttachment> attachmentFilter) {
+		this.attachmentFilter = attachmentFilter;
+	}
+
+	/**
+	 * Sets a filter on the envelope of the messages (e.g., an
+	 * {@link EnvelopeFilter}). The envelope is read first and evaluated by
+	 * the filter. If it rejects the message, nothing else is read and null is
+	 * returned instead of the message.
+	 *
+	 * @param filter
+	 *            The filter or null to accept all messages, which is the
+	 *            default.
+	 */
+	public void setFilter(Predicate<Message> filter) {
+		this.filter = filter;
+	}
+
+	/**
+	 * Selects the lazy mode, in which string and binary values (e.g., the
+	 * bodies and the attachment data) are not read while parsing. Only the
+	 * location and size of their streams is recorded and they are read on
+	 * first access, so the returned {@link Message} keeps the .msg file open
+	 * until {@link Message#close()} is called. {@link Message#detach()} reads
+	 * all remaining values and closes the file. The fields of the envelope
+	 * (subject, sender, recipients, dates, ...) are read while parsing in any
+	 * mode. Attached messages are only parsed when
+	 * {@link MsgAttachment#getMessage()} is called for the first time, with
+	 * the settings this parser has at that time.
+	 *
+	 * @param lazy
+	 *            Whether values should be read on first access.
+	 */
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Limits the work spent on each .msg file, e.g. to protect against
+	 * malformed or malicious files. Once a limit is exceeded, the message
+	 * parsed so far is returned and {@link Message#isTruncated()} is true.
+	 * Attached messages parsed lazily (see {@link #setLazy(boolean)}) get a
+	 * budget of their own when they are accessed.
+	 *
+	 * @param parseBudget
+	 *            The limits or null to parse files completely, which is the
+	 *            default.
+	 */
+	public void setParseBudget(ParseBudget parseBudget) {
+		this.parseBudget = parseBudget != null ? parseBudget : new ParseBudget();
+	}
+
+	/**
+	 * Selects the properties to be read from now on. Streams of properties
+	 * that are not selected are not read at all, so e.g. the compressed RTF
+	 * body is neither read nor decompressed unless
+	 * {@link ParseOptions#BODY_RTF} is selected.
+	 *
+	 * @param parseOptions
+	 *            The properties to be read or null to read all properties,
+	 *            which is the default.
+	 */
+	public void setParseOptions(ParseOptions parseOptions) {
+		this.parseOptions = parseOptions;
 	}
 
 	/**
@@ -693,4 +1720,148 @@ public class MsgParser {
 	public void setRtf2htmlConverter(RTF2HTMLConverter rtf2htmlConverter) {
 		this.rtf2htmlConverter = rtf2htmlConverter;
 	}
+
+	/**
+	 * Sets the size above which binary values (e.g., the attachment data and
+	 * the RTF body) and the plain text and HTML bodies are not read into
+	 * memory but copied to temporary files. Other strings, like the subject
+	 * or the names of the recipients, are always kept in memory. Spilled
+	 * values are returned as {@link SpilledValue} handles by
+	 * {@link Message#getPropertyValue(Integer)}. The bodies and the attachment
+	 * data are not cached but read from the file again on every call of
+	 * their getters, so callers should keep the result or use the streaming
+	 * methods like {@link Message#openBodyTextReader()} and
+	 * {@link org.nineunderground.parser.attachment.FileAttachment#openStream()}.
+	 * The files are deleted by {@link Message#close()}. In lazy mode (see
+	 * {@link #setLazy(boolean)}) values are read on access and not spilled.
+	 *
+	 * @param spillThreshold
+	 *            The size in bytes or {@link Long#MAX_VALUE} to keep all
+	 *            values in memory, which is the default.
+	 */
+	public void setSpillThreshold(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * Selects POI instead of the built-in {@link CompoundFileReader} for
+	 * reading files and input streams. Buffers are always read with the
+	 * built-in reader.
+	 *
+	 * @param usePoi
+	 *            Whether POI should be used.
+	 */
+	public void setUsePoi(boolean usePoi) {
+		this.usePoi = usePoi;
+	}
+
+	/**
+	 * Copies a stream to a temporary file without holding it in memory. The
+	 * file is deleted when the given message is closed.
+	 *
+	 * @param cf
+	 *            The compound file holding the .msg file.
+	 * @param entry
+	 *            The index of the stream to be copied.
+	 * @param info
+	 *            The type of the property.
+	 * @param msg
+	 *            The {@link Message} object the property belongs to.
+	 * @return The handle of the value.
+	 * @throws IOException
+	 *             Thrown if the stream could not be copied.
+	 */
+	private SpilledValue spill(CompoundFile cf, int entry, FieldInformation info, Message msg) throws IOException {
+		final Path file = Files.createTempFile("msgparser", ".tmp");
+		final InputStream in = cf.openStream(entry);
+		try {
+			Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+		} catch (final IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		} finally {
+			in.close();
+		}
+		final SpilledValue spilled = new SpilledValue(file, info.getMapiType(), cf.getSize(entry),
+				msg.string8Charset);
+		msg.spilledValues.add(spilled);
+		return spilled;
+	}
+
+	/**
+	 * Flags a message as truncated after a limit of the {@link #parseBudget}
+	 * has been exceeded.
+	 *
+	 * @param msg
+	 *            The message being parsed.
+	 * @param current
+	 *            The message (or attached message) whose storage was parsed
+	 *            when the limit was exceeded.
+	 * @param limit
+	 *            The name of the exceeded limit.
+	 */
+	private void truncate(Message msg, Message current, String limit) {
+		logger.fine("Parse budget exceeded (" + limit + "), the message is truncated");
+		msg.setTruncated(true);
+		current.setTruncated(true);
+	}
+
+	/**
+	 * A storage waiting to be parsed by
+	 * {@link MsgParser#checkDirectoryEntry(CompoundFile, int, Message, boolean, int, ParseUsage)}.
+	 */
+	protected static final class PendingStorage {
+
+		private final int storage;
+		private final Message msg;
+		private final int depth;
+
+		/**
+		 * @param storage
+		 *            The index of the storage.
+		 * @param msg
+		 *            The {@link Message} object the storage belongs to.
+		 * @param depth
+		 *            The nesting depth of the storage.
+		 */
+		protected PendingStorage(int storage, Message msg, int depth) {
+			this.storage = storage;
+			this.msg = msg;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * The work done on a .msg file by a single call of
+	 * {@link MsgParser#parseMsg(java.io.File, CancellationToken)}, which is
+	 * checked against the {@link MsgParser#parseBudget}. A stream is counted
+	 * when it is read (or deferred in lazy mode).
+	 */
+	protected static final class ParseUsage {
+
+		private long entries = 0;
+		private long bytes = 0;
+		private int attachments = 0;
+
+		/**
+		 * Checks the work done so far against a budget.
+		 *
+		 * @param budget
+		 *            The budget of the parser.
+		 * @return The name of the exceeded limit or null if all limits are
+		 *         kept.
+		 */
+		private String getExceededLimit(ParseBudget budget) {
+			if (entries > budget.getMaxEntries()) {
+				return "entry count";
+			}
+			if (bytes > budget.getMaxBytes()) {
+				return "decoded bytes";
+			}
+			if (attachments > budget.getMaxAttachments()) {
+				return "attachment count";
+			}
+			return null;
+		}
+	}
 }
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.util.UUID;
+
+/**
+ * The name of a named property, i.e., a property with a code of 0x8000 or
+ * above whose meaning is defined by a property set GUID together with either
+ * a numeric id or a string name.
+ *
+ * @author inaki
+ */
+public class NamedProperty {
+
+	/**
+	 * The PS_MAPI property set.
+	 */
+	public static final UUID PS_MAPI = UUID.fromString("00020328-0000-0000-c000-000000000046");
+	/**
+	 * The PS_PUBLIC_STRINGS property set (e.g., used for the keywords of a
+	 * message).
+	 */
+	public static final UUID PS_PUBLIC_STRINGS = UUID.fromString("00020329-0000-0000-c000-000000000046");
+
+	private final UUID guid;
+	private final long id;
+	private final String name;
+
+	/**
+	 * Creates a named property identified by a numeric id.
+	 *
+	 * @param guid
+	 *            The property set.
+	 * @param id
+	 *            The numeric id within the property set.
+	 */
+	public NamedProperty(UUID guid, long id) {
+		this.guid = guid;
+		this.id = id;
+		this.name = null;
+	}
+
+	/**
+	 * Creates a named property identified by a string name.
+	 *
+	 * @param guid
+	 *            The property set.
+	 * @param name
+	 *            The name within the property set.
+	 */
+	public NamedProperty(UUID guid, String name) {
+		this.guid = guid;
+		this.id = -1;
+		this.name = name;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof NamedProperty)) {
+			return false;
+		}
+		final NamedProperty other = (NamedProperty) obj;
+		return id == other.id && guid.equals(other.guid) && (name == null ? other.name == null : name.equals(other.name));
+	}
+
+	/**
+	 * @return the property set
+	 */
+	public UUID getGuid() {
+		return guid;
+	}
+
+	/**
+	 * @return the numeric id or -1 if the property is identified by a string
+	 *         name
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * @return the string name or null if the property is identified by a
+	 *         numeric id
+	 */
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * guid.hashCode() + (name == null ? Long.hashCode(id) : name.hashCode());
+	}
+
+	/**
+	 * @return whether the property is identified by a string name
+	 */
+	public boolean isString() {
+		return name != null;
+	}
+
+	@Override
+	public String toString() {
+		return "{" + guid + "}/" + (name == null ? "0x" + Long.toHexString(id) : name);
+	}
+}
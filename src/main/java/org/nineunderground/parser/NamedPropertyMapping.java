@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The mapping between the codes of named properties (0x8000 and above) and
+ * their names as stored in the "__nameid_version1.0" storage of a .msg file.
+ * A mapping is immutable, so it can be shared by all messages it has been
+ * decoded for.
+ *
+ * @author inaki
+ */
+public class NamedPropertyMapping {
+
+	/**
+	 * The code of the first named property.
+	 */
+	public static final int FIRST_CODE = 0x8000;
+
+	/**
+	 * A mapping without any named properties.
+	 */
+	public static final NamedPropertyMapping EMPTY = new NamedPropertyMapping(new NamedProperty[0]);
+
+	/**
+	 * The names of the properties, indexed by their code minus
+	 * {@link #FIRST_CODE}.
+	 */
+	private final NamedProperty[] names;
+	private final Map<NamedProperty, Integer> codes;
+
+	private NamedPropertyMapping(NamedProperty[] names) {
+		this.names = names;
+		codes = new HashMap<>(names.length * 2);
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] != null) {
+				codes.put(names[i], FIRST_CODE + i);
+			}
+		}
+	}
+
+	/**
+	 * Decodes the streams of a "__nameid_version1.0" storage. Every entry of
+	 * the entry stream consists of the numeric id (or the offset of the name
+	 * within the string stream), followed by the kind of the property in the
+	 * lowest bit, the index of its GUID in the next 15 bits and the index of
+	 * the property in the upper 16 bits.
+	 *
+	 * @param guids
+	 *            The GUID stream ("__substg1.0_00020102").
+	 * @param entries
+	 *            The entry stream ("__substg1.0_00030102").
+	 * @param strings
+	 *            The string stream ("__substg1.0_00040102").
+	 * @return The decoded mapping.
+	 */
+	public static NamedPropertyMapping decode(ByteBuffer guids, ByteBuffer entries, ByteBuffer strings) {
+		final ByteBuffer guidStream = guids.slice().order(ByteOrder.LITTLE_ENDIAN);
+		final ByteBuffer entryStream = entries.slice().order(ByteOrder.LITTLE_ENDIAN);
+		final ByteBuffer stringStream = strings.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+		final UUID[] guidTable = new UUID[guidStream.remaining() / 16];
+		for (int i = 0; i < guidTable.length; i++) {
+			guidTable[i] = MapiCodec.decodeGuid(guidStream, 16 * i);
+		}
+
+		final int count = entryStream.remaining() / 8;
+		int size = 0;
+		for (int i = 0; i < count; i++) {
+			size = Math.max(size, (entryStream.getInt(8 * i + 4) >>> 16) + 1);
+		}
+		final NamedProperty[] names = new NamedProperty[size];
+		for (int i = 0; i < count; i++) {
+			final int idOrOffset = entryStream.getInt(8 * i);
+			final int info = entryStream.getInt(8 * i + 4);
+			final int guidIndex = (info >>> 1) & 0x7fff;
+			final int propertyIndex = info >>> 16;
+			final UUID guid;
+			if (guidIndex == 1) {
+				guid = NamedProperty.PS_MAPI;
+			} else if (guidIndex == 2) {
+				guid = NamedProperty.PS_PUBLIC_STRINGS;
+			} else if (guidIndex >= 3 && guidIndex - 3 < guidTable.length) {
+				guid = guidTable[guidIndex - 3];
+			} else {
+				continue;
+			}
+			NamedProperty name = null;
+			if ((info & 1) == 0) {
+				name = new NamedProperty(guid, idOrOffset & 0xffffffffL);
+			} else if (idOrOffset >= 0 && idOrOffset + 4 <= stringStream.limit()) {
+				// the name is stored with its length in bytes up front
+				final int length = Math.min(stringStream.getInt(idOrOffset), stringStream.limit() - idOrOffset - 4);
+				final ByteBuffer nameBytes = stringStream.duplicate();
+				nameBytes.position(idOrOffset + 4);
+				nameBytes.limit(idOrOffset + 4 + Math.max(length, 0));
+				name = new NamedProperty(guid, MapiCodec.decodeUnicode(nameBytes.order(ByteOrder.LITTLE_ENDIAN)));
+			}
+			names[propertyIndex] = name;
+		}
+		return new NamedPropertyMapping(names);
+	}
+
+	/**
+	 * @param code
+	 *            The code of a named property (0x8000 or above).
+	 * @return The name of the property or null if it is unknown.
+	 */
+	public NamedProperty get(int code) {
+		final int index = code - FIRST_CODE;
+		return index >= 0 && index < names.length ? names[index] : null;
+	}
+
+	/**
+	 * @param name
+	 *            The name of a named property.
+	 * @return The code of the property within the message or -1 if the
+	 *         message does not contain the property.
+	 */
+	public int getCode(NamedProperty name) {
+		final Integer code = codes.get(name);
+		return code == null ? -1 : code;
+	}
+
+	/**
+	 * @return The number of named properties.
+	 */
+	public int size() {
+		return codes.size();
+	}
+}
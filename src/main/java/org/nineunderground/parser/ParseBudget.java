@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+/**
+ * Limits the work {@link MsgParser} spends on a single .msg file (see
+ * {@link MsgParser#setParseBudget(ParseBudget)}). Once a limit is exceeded,
+ * parsing stops and the message parsed so far is returned, flagged as
+ * truncated (see {@link Message#isTruncated()}). By default nothing is
+ * limited.
+ *
+ * @author inaki
+ */
+public class ParseBudget {
+
+	private int maxDepth = Integer.MAX_VALUE;
+	private long maxEntries = Long.MAX_VALUE;
+	private long maxBytes = Long.MAX_VALUE;
+	private int maxAttachments = Integer.MAX_VALUE;
+
+	/**
+	 * @return The maximum number of attachments.
+	 */
+	public int getMaxAttachments() {
+		return maxAttachments;
+	}
+
+	/**
+	 * @return The maximum total size of the streams read.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return The maximum nesting depth of storages.
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @return The maximum number of directory entries visited.
+	 */
+	public long getMaxEntries() {
+		return maxEntries;
+	}
+
+	/**
+	 * Limits the number of attachments, including those of attached messages.
+	 *
+	 * @param maxAttachments
+	 *            The maximum number of attachments.
+	 * @return This budget.
+	 */
+	public ParseBudget maxAttachments(int maxAttachments) {
+		this.maxAttachments = maxAttachments;
+		return this;
+	}
+
+	/**
+	 * Limits the total size of the streams that are read (or deferred in
+	 * lazy mode), including the streams of recipients and attachments and
+	 * those of the named property mapping. The data of an attachment only
+	 * counts if it passes the attachment filter (see
+	 * {@link MsgParser#setAttachmentFilter(java.util.function.Predicate)}).
+	 *
+	 * @param maxBytes
+	 *            The maximum number of bytes.
+	 * @return This budget.
+	 */
+	public ParseBudget maxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		return this;
+	}
+
+	/**
+	 * Limits the nesting depth of storages, e.g. of messages attached to
+	 * attached messages. The storages of the message itself have depth 0.
+	 * Storages nested deeper are skipped, everything else is still parsed.
+	 *
+	 * @param maxDepth
+	 *            The maximum depth.
+	 * @return This budget.
+	 */
+	public ParseBudget maxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+		return this;
+	}
+
+	/**
+	 * Limits the number of directory entries (storages and streams) visited.
+	 *
+	 * @param maxEntries
+	 *            The maximum number of entries.
+	 * @return This budget.
+	 */
+	public ParseBudget maxEntries(long maxEntries) {
+		this.maxEntries = maxEntries;
+		return this;
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.util.BitSet;
+
+/**
+ * Selects the properties {@link MsgParser} reads from a .msg file (see
+ * {@link MsgParser#setParseOptions(ParseOptions)}). Properties can be
+ * selected one by one by their code or by groups like {@link #ENVELOPE}.
+ * Streams of properties that are not selected are not read at all, the
+ * storages of recipients and attachments are skipped unless they are
+ * selected as well.
+ *
+ * @author inaki
+ */
+public class ParseOptions {
+
+	/**
+	 * The message class, subject, sender, recipients, message id, transport
+	 * headers and dates of the message.
+	 */
+	public static final String ENVELOPE = "envelope";
+	/**
+	 * The plain text body (0x1000).
+	 */
+	public static final String BODY_TEXT = "bodyText";
+	/**
+	 * The HTML body (0x1013).
+	 */
+	public static final String BODY_HTML = "bodyHTML";
+	/**
+	 * The compressed RTF body (0x1009) and the HTML converted from it.
+	 */
+	public static final String BODY_RTF = "bodyRTF";
+	/**
+	 * The recipients of the message.
+	 */
+	public static final String RECIPIENTS = "recipients";
+	/**
+	 * All properties of the attachments except for their data. The size of
+	 * the data is still known. Attached messages are parsed with the same
+	 * options.
+	 */
+	public static final String ATTACHMENTS_META = "attachmentsMeta";
+	/**
+	 * The attachments including their data.
+	 */
+	public static final String ATTACHMENTS = "attachments";
+
+	private static final int[] envelopeCodes = { 0x1a, 0x37, 0x39, 0x42, 0x65, 0x76, 0x7d, 0xc1f, 0xe02, 0xe03,
+			0xe04, 0xe1d, 0x1035, 0x3001, 0x3007, 0x3008, 0x3ffa };
+
+	private final BitSet codes = new BitSet();
+	private boolean recipients = false;
+	private boolean attachments = false;
+	private boolean attachmentData = false;
+
+	/**
+	 * Creates options that select nothing yet.
+	 */
+	public ParseOptions() {
+	}
+
+	/**
+	 * Creates options that select the given groups.
+	 *
+	 * @param groups
+	 *            The groups to be selected (e.g., {@link #ENVELOPE}).
+	 * @return The new options.
+	 * @throws IllegalArgumentException
+	 *             Thrown if a group is unknown.
+	 */
+	public static ParseOptions of(String... groups) throws IllegalArgumentException {
+		return new ParseOptions().include(groups);
+	}
+
+	/**
+	 * Selects the given groups in addition to the properties selected so far.
+	 *
+	 * @param groups
+	 *            The groups to be selected (e.g., {@link #ENVELOPE}).
+	 * @return These options.
+	 * @throws IllegalArgumentException
+	 *             Thrown if a group is unknown.
+	 */
+	public ParseOptions include(String... groups) throws IllegalArgumentException {
+		for (final String group : groups) {
+			switch (group) {
+				case ENVELOPE :
+					includeProperties(envelopeCodes);
+					recipients = true;
+					break;
+				case BODY_TEXT :
+					includeProperties(0x1000);
+					break;
+				case BODY_HTML :
+					includeProperties(0x1013);
+					break;
+				case BODY_RTF :
+					includeProperties(0x1009);
+					break;
+				case RECIPIENTS :
+					recipients = true;
+					break;
+				case ATTACHMENTS_META :
+					attachments = true;
+					break;
+				case ATTACHMENTS :
+					attachments = true;
+					attachmentData = true;
+					break;
+				default :
+					throw new IllegalArgumentException("Unknown group of properties: " + group);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Selects the properties with the given codes (as returned by
+	 * {@link Message#getPropertyCodes()}) of the message.
+	 *
+	 * @param codes
+	 *            The codes of the properties to be selected.
+	 * @return These options.
+	 */
+	public ParseOptions includeProperties(int... codes) {
+		for (final int code : codes) {
+			this.codes.set(code & 0xffff);
+		}
+		return this;
+	}
+
+	/**
+	 * Selects the properties with the given tags, i.e., the code in the upper
+	 * and the MAPI type in the lower 16 bits. The type is not taken into
+	 * account.
+	 *
+	 * @param tags
+	 *            The tags of the properties to be selected.
+	 * @return These options.
+	 */
+	public ParseOptions includeTags(int... tags) {
+		for (final int tag : tags) {
+			this.codes.set(tag >>> 16);
+		}
+		return this;
+	}
+
+	/**
+	 * @return Whether the data of file attachments is read.
+	 */
+	public boolean includesAttachmentData() {
+		return attachmentData;
+	}
+
+	/**
+	 * @return Whether the attachments are read.
+	 */
+	public boolean includesAttachments() {
+		return attachments;
+	}
+
+	/**
+	 * @return Whether any named property (0x8000 and above) is selected.
+	 */
+	public boolean includesNamedProperties() {
+		return codes.nextSetBit(NamedPropertyMapping.FIRST_CODE) >= 0;
+	}
+
+	/**
+	 * @param code
+	 *            The code of a property of the message.
+	 * @return Whether the property is selected.
+	 */
+	public boolean includesProperty(int code) {
+		return code >= 0 && codes.get(code);
+	}
+
+	/**
+	 * @return Whether the recipients are read.
+	 */
+	public boolean includesRecipients() {
+		return recipients;
+	}
+}
@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+/**
+ * An object the properties found in a .msg file can be set on, i.e., a
+ * {@link Message}, a {@link RecipientEntry} or a file attachment.
+ *
+ * @author inaki
+ */
+public interface PropertyContainer {
+
+	/**
+	 * Sets the given property. Unknown properties are either stored or
+	 * ignored, depending on the implementation.
+	 *
+	 * @param msgProp
+	 *            The property to be set.
+	 * @throws ClassCastException
+	 *             Thrown if the detected data type does not match the expected
+	 *             data type.
+	 */
+	void setProperty(MessageProperty msgProp) throws ClassCastException;
+}
@@ -0,0 +1,308 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map from property codes to property values that keeps the codes in a
+ * sorted int array and the values in a parallel array. Compared to a
+ * {@link java.util.TreeMap} neither the keys are boxed nor a node is created
+ * per property, and lookups are a binary search. Iterating the map returns the
+ * properties in ascending order of their codes.
+ *
+ * @author inaki
+ */
+public class PropertyMap extends AbstractMap<Integer, Object> {
+
+	private static final int[] EMPTY_KEYS = {};
+	private static final Object[] EMPTY_VALUES = {};
+
+	private int[] keys = EMPTY_KEYS;
+	private Object[] values = EMPTY_VALUES;
+	private int size = 0;
+
+	@Override
+	public void clear() {
+		keys = EMPTY_KEYS;
+		values = EMPTY_VALUES;
+		size = 0;
+	}
+
+	/**
+	 * @param key
+	 *            The property code.
+	 * @return Whether a value is stored for the given code.
+	 */
+	public boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof Integer && containsKey(((Integer) key).intValue());
+	}
+
+	@Override
+	public Set<Entry<Integer, Object>> entrySet() {
+		return new AbstractSet<Entry<Integer, Object>>() {
+
+			@Override
+			public Iterator<Entry<Integer, Object>> iterator() {
+				return new PropertyIterator<Entry<Integer, Object>>() {
+
+					@Override
+					protected Entry<Integer, Object> get(int index) {
+						return new SimpleImmutableEntry<>(keys[index], values[index]);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Replaces all values by their detached values, so that none of them
+	 * refers to the file the message has been parsed from any longer (see
+	 * {@link DeferredValue#detach(Object)}).
+	 */
+	public void detach() {
+		for (int i = 0; i < size; i++) {
+			values[i] = DeferredValue.detach(values[i]);
+		}
+	}
+
+	/**
+	 * @param key
+	 *            The property code.
+	 * @return The value stored for the given code or null.
+	 */
+	public Object get(int key) {
+		final int index = indexOf(key);
+		return index >= 0 ? values[index] : null;
+	}
+
+	@Override
+	public Object get(Object key) {
+		return key instanceof Integer ? get(((Integer) key).intValue()) : null;
+	}
+
+	/**
+	 * Returns the values stored for the given code as a list. The values of
+	 * multi-valued properties, which are stored as arrays, are listed one by
+	 * one, any other value is returned as a single element list.
+	 *
+	 * @param key
+	 *            The property code.
+	 * @return A read-only list of the values, which is empty if no value is
+	 *         stored for the code.
+	 */
+	public List<Object> getValues(int key) {
+		return toValueList(get(key));
+	}
+
+	private int indexOf(int key) {
+		return Arrays.binarySearch(keys, 0, size, key);
+	}
+
+	@Override
+	public Set<Integer> keySet() {
+		return new AbstractSet<Integer>() {
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public Iterator<Integer> iterator() {
+				return new PropertyIterator<Integer>() {
+
+					@Override
+					protected Integer get(int index) {
+						return keys[index];
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Stores the value for the given code, replacing any previous value.
+	 *
+	 * @param key
+	 *            The property code.
+	 * @param value
+	 *            The value to be stored.
+	 * @return The previous value or null.
+	 */
+	public Object put(int key, Object value) {
+		int index = indexOf(key);
+		if (index >= 0) {
+			final Object previous = values[index];
+			values[index] = value;
+			return previous;
+		}
+		index = -index - 1;
+		if (size == keys.length) {
+			final int capacity = Math.max(8, size + (size >> 1));
+			keys = Arrays.copyOf(keys, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(values, index, values, index + 1, size - index);
+		keys[index] = key;
+		values[index] = value;
+		size++;
+		return null;
+	}
+
+	@Override
+	public Object put(Integer key, Object value) {
+		return put(key.intValue(), value);
+	}
+
+	/**
+	 * Removes the value stored for the given code.
+	 *
+	 * @param key
+	 *            The property code.
+	 * @return The removed value or null.
+	 */
+	public Object remove(int key) {
+		final int index = indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		final Object previous = values[index];
+		removeAt(index);
+		return previous;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return key instanceof Integer ? remove(((Integer) key).intValue()) : null;
+	}
+
+	private void removeAt(int index) {
+		System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+		System.arraycopy(values, index + 1, values, index, size - index - 1);
+		values[--size] = null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Lists a property value like {@link #getValues(int)}. Byte arrays hold a
+	 * single binary value and are not listed byte by byte.
+	 *
+	 * @param value
+	 *            The value of a property or null.
+	 * @return A read-only list of the values, which is empty if the value is
+	 *         null.
+	 */
+	public static List<Object> toValueList(Object value) {
+		if (value == null) {
+			return Collections.emptyList();
+		}
+		if (value instanceof Object[]) {
+			return Collections.unmodifiableList(Arrays.asList((Object[]) value));
+		}
+		if (value.getClass().isArray() && !(value instanceof byte[])) {
+			return new AbstractList<Object>() {
+
+				@Override
+				public Object get(int index) {
+					return Array.get(value, index);
+				}
+
+				@Override
+				public int size() {
+					return Array.getLength(value);
+				}
+			};
+		}
+		return Collections.singletonList(value);
+	}
+
+	/**
+	 * Releases the unused capacity of the arrays. This is done once all
+	 * properties of a message have been parsed.
+	 */
+	public void trimToSize() {
+		if (size < keys.length) {
+			keys = size == 0 ? EMPTY_KEYS : Arrays.copyOf(keys, size);
+			values = size == 0 ? EMPTY_VALUES : Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * Iterates the properties in ascending order of their codes.
+	 */
+	private abstract class PropertyIterator<T> implements Iterator<T> {
+
+		private int next = 0;
+		private int last = -1;
+
+		protected abstract T get(int index);
+
+		@Override
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		@Override
+		public T next() {
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			last = next++;
+			return get(last);
+		}
+
+		@Override
+		public void remove() {
+			if (last < 0) {
+				throw new IllegalStateException();
+			}
+			removeAt(last);
+			next = last;
+			last = -1;
+		}
+	}
+}
@@ -20,10 +20,11 @@
 
 package org.nineunderground.parser;
 
+import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,7 +33,7 @@ import java.util.logging.Logger;
  *
  * @author inaki
  */
-public class RecipientEntry {
+public class RecipientEntry implements PropertyContainer {
 
 	protected static final Logger logger = Logger.getLogger(RecipientEntry.class.getName());
 	/**
@@ -46,7 +47,16 @@ public class RecipientEntry {
 	/**
 	 * Contains all properties that are not covered by the special properties.
 	 */
-	protected Map<Integer, Object> properties = new TreeMap<>();
+	protected PropertyMap properties = new PropertyMap();
+
+	/**
+	 * Reads all property values that have not been read yet, so that the
+	 * recipient no longer depends on the .msg file (see
+	 * {@link Message#detach()}).
+	 */
+	public void detach() {
+		this.properties.detach();
+	}
 
 	/**
 	 * This method should no longer be used due to the fact that message
@@ -93,6 +103,23 @@ public class RecipientEntry {
 		return getPropertyFromHex(name);
 	}
 
+	/**
+	 * Returns the value of a binary property (PT_BINARY) without copying it,
+	 * see {@link Message#getPropertyBuffer(int)}.
+	 *
+	 * @param code
+	 *            The key for the property to be retrieved.
+	 * @return The value of the specified property or null if it is not
+	 *         available or not binary.
+	 */
+	public ByteBuffer getPropertyBuffer(int code) {
+		Object value = resolveProperty(code);
+		if (value instanceof SpilledValue) {
+			value = ((SpilledValue) value).get();
+		}
+		return value instanceof ByteBuffer ? ((ByteBuffer) value).duplicate() : null;
+	}
+
 	/**
 	 * This method returns a list of all available properties.
 	 *
@@ -131,10 +158,29 @@ public class RecipientEntry {
 	 *
 	 * @param code
 	 *            The key for the property to be retrieved.
-	 * @return The value of the specified property.
+	 * @return The value of the specified property. Binary values (PT_BINARY)
+	 *         are returned as copies in byte arrays, use
+	 *         {@link #getPropertyBuffer(int)} to read them without copying.
 	 */
 	public Object getPropertyValue(Integer code) {
-		return this.properties.get(code);
+		return code == null ? null : MapiCodec.copyBuffers(resolveProperty(code));
+	}
+
+	/**
+	 * This method retrieves all values of a specific property. Multi-valued
+	 * properties (e.g., the keywords of a message) are returned value by
+	 * value, all other properties as a single value.
+	 *
+	 * @param code
+	 *            The key for the property to be retrieved.
+	 * @return A read-only list of the values of the specified property, which
+	 *         is empty if the property is not available.
+	 */
+	public List<Object> getPropertyValues(Integer code) {
+		if (code == null) {
+			return Collections.<Object> emptyList();
+		}
+		return PropertyMap.toValueList(getPropertyValue(code));
 	}
 
 	/**
@@ -151,6 +197,25 @@ public class RecipientEntry {
 		return toName;
 	}
 
+	/**
+	 * Returns the value of a property and decodes it first if it has been
+	 * deferred in lazy mode.
+	 *
+	 * @param code
+	 *            The key for the property to be retrieved.
+	 * @return The value of the property or null.
+	 */
+	protected Object resolveProperty(int code) {
+		final Object value = this.properties.get(code);
+		if (value instanceof DeferredValue) {
+			// decoded on first access
+			final Object data = ((DeferredValue) value).get();
+			this.properties.put(code, data);
+			return data;
+		}
+		return value;
+	}
+
 	/**
 	 * Sets the name/value pair in the {@link #properties} map. Some properties
 	 * are put into special attributes (e.g., {@link #toEmail} when the property
@@ -162,28 +227,21 @@ public class RecipientEntry {
 	 *             Thrown if the detected data type does not match the expected
 	 *             data type.
 	 */
+	@Override
 	public void setProperty(MessageProperty msgProp) throws ClassCastException {
-		String name = msgProp.getClazz();
+		final int mapiClass = msgProp.getPropertyId();
 		final Object value = msgProp.getData();
 
-		if (name == null || value == null)
+		if (value == null)
 			return;
-		name = name.intern();
-
-		int mapiClass = -1;
-		try {
-			mapiClass = Integer.parseInt(name, 16);
-		} catch (final NumberFormatException e) {
-			logger.log(Level.FINEST, "Unexpected mapi class: " + name);
-		}
 
 		switch (mapiClass) {
 			case 0x3003 : // EMAIL ADDRESS
 			case 0x39fe :
-				this.setToEmail((String) value);
+				this.setToEmail((String) DeferredValue.resolve(value));
 				break;
 			case 0x3001 : // DISPLAY NAME
-				this.setToName((String) value);
+				this.setToName((String) DeferredValue.resolve(value));
 				break;
 		}
 
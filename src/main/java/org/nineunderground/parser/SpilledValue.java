@@ -0,0 +1,182 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The value of a property that has been written to a temporary file instead
+ * of being held in memory, because it is larger than the threshold set by
+ * {@link MsgParser#setSpillThreshold(long)}. The value is decoded from the
+ * file whenever it is requested. The file is read rather than mapped into
+ * memory, since a mapped file cannot be deleted on some platforms (e.g.,
+ * Windows) for as long as the mapping is reachable. The file is deleted when
+ * the message the value belongs to is closed (see {@link Message#close()}).
+ *
+ * @author inaki
+ */
+public class SpilledValue implements Closeable {
+
+	private final Path file;
+	private final int mapiType;
+	private final long size;
+	private final Charset charset;
+
+	/**
+	 * @param file
+	 *            The temporary file holding the raw content of the stream.
+	 * @param mapiType
+	 *            The MAPI type of the property.
+	 * @param size
+	 *            The size of the value in bytes.
+	 */
+	public SpilledValue(Path file, int mapiType, long size) {
+		this(file, mapiType, size, null);
+	}
+
+	/**
+	 * @param file
+	 *            The temporary file holding the raw content of the stream.
+	 * @param mapiType
+	 *            The MAPI type of the property.
+	 * @param size
+	 *            The size of the value in bytes.
+	 * @param charset
+	 *            The charset of an 8 bit string or null for ISO-8859-1.
+	 */
+	public SpilledValue(Path file, int mapiType, long size, Charset charset) {
+		this.file = file;
+		this.mapiType = mapiType;
+		this.size = size;
+		this.charset = charset;
+	}
+
+	/**
+	 * Deletes the temporary file.
+	 *
+	 * @throws IOException
+	 *             Thrown if the file could not be deleted.
+	 */
+	@Override
+	public void close() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Decodes the value from the file. Strings are created on every call,
+	 * binary values are read into a new read-only buffer on every call. Use
+	 * {@link #openStream()} to read large values without holding them in
+	 * memory.
+	 *
+	 * @return The decoded value (see {@link MapiCodec}).
+	 * @throws UncheckedIOException
+	 *             Thrown if the file could not be read.
+	 */
+	public Object get() throws UncheckedIOException {
+		try {
+			final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				final long length = channel.size();
+				if (length > Integer.MAX_VALUE) {
+					throw new IOException("Spilled property value is too large to be read at once: " + file);
+				}
+				final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+					// read until the buffer is full
+				}
+				buffer.flip();
+				return MapiCodec.decode(buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN), mapiType, charset);
+			} finally {
+				channel.close();
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException("Could not read spilled property value", e);
+		}
+	}
+
+	/**
+	 * @return The temporary file holding the value.
+	 */
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The MAPI type of the property.
+	 */
+	public int getMapiType() {
+		return mapiType;
+	}
+
+	/**
+	 * @return The size of the value in bytes.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Opens the file for reading the raw content of the value.
+	 *
+	 * @return An input stream reading the file.
+	 * @throws IOException
+	 *             Thrown if the file could not be opened.
+	 */
+	public InputStream openStream() throws IOException {
+		return Files.newInputStream(file);
+	}
+
+	@Override
+	public String toString() {
+		return "[spilled to " + file + ", " + size + " bytes]";
+	}
+
+	/**
+	 * Writes the raw content of the value to the given channel.
+	 *
+	 * @param channel
+	 *            The channel the content is written to, which is not closed.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             Thrown if the file could not be read or the channel could
+	 *             not be written.
+	 */
+	public long transferTo(WritableByteChannel channel) throws IOException {
+		final FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			final long length = source.size();
+			long written = 0;
+			while (written < length) {
+				written += source.transferTo(written, length - written, channel);
+			}
+			return written;
+		} finally {
+			source.close();
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes strings in the charset given by the code page properties of a
+ * message (PR_MESSAGE_CODEPAGE and PR_INTERNET_CPID). The charsets the JDK
+ * decodes fastest from an array (UTF-16LE, UTF-8, ISO-8859-1 and US-ASCII)
+ * are decoded by the {@link String} constructor, all others by a
+ * {@link CharsetDecoder} that is reused by each thread. The buffers used for
+ * decoding are reused as well.
+ *
+ * @author inaki
+ */
+public class StringDecoder {
+
+	/**
+	 * The maximum size of the buffers kept by each thread, longer strings are
+	 * decoded using buffers of their own.
+	 */
+	protected static final int maxCachedBufferSize = 64 * 1024;
+
+	private static final ThreadLocal<Map<Charset, CharsetDecoder>> decoders = ThreadLocal.withInitial(HashMap::new);
+	private static final ThreadLocal<byte[]> byteBuffers = new ThreadLocal<>();
+	private static final ThreadLocal<CharBuffer> charBuffers = new ThreadLocal<>();
+
+	/**
+	 * Decodes the remaining bytes of a buffer without changing its position.
+	 * Malformed input is replaced like the {@link String} constructor does.
+	 *
+	 * @param buffer
+	 *            The bytes to be decoded.
+	 * @param charset
+	 *            The charset of the bytes.
+	 * @return The string.
+	 */
+	public static String decode(ByteBuffer buffer, Charset charset) {
+		final int length = buffer.remaining();
+		if (isArrayCharset(charset)) {
+			if (buffer.hasArray()) {
+				return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, charset);
+			}
+			final byte[] bytes = getByteBuffer(length);
+			buffer.duplicate().get(bytes, 0, length);
+			return new String(bytes, 0, length, charset);
+		}
+		CharsetDecoder decoder = decoders.get().get(charset);
+		if (decoder == null) {
+			decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			decoders.get().put(charset, decoder);
+		}
+		decoder.reset();
+		final CharBuffer chars = getCharBuffer((int) Math.ceil(length * (double) decoder.maxCharsPerByte()) + 1);
+		decoder.decode(buffer.duplicate(), chars, true);
+		decoder.flush(chars);
+		chars.flip();
+		return chars.toString();
+	}
+
+	/**
+	 * @param length
+	 *            The number of bytes needed.
+	 * @return The byte array of this thread or a new one if it is too small.
+	 */
+	private static byte[] getByteBuffer(int length) {
+		byte[] bytes = byteBuffers.get();
+		if (bytes == null || bytes.length < length) {
+			bytes = new byte[length];
+			if (length <= maxCachedBufferSize) {
+				byteBuffers.set(bytes);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param length
+	 *            The number of characters needed.
+	 * @return The cleared char buffer of this thread or a new one if it is
+	 *         too small.
+	 */
+	private static CharBuffer getCharBuffer(int length) {
+		CharBuffer chars = charBuffers.get();
+		if (chars == null || chars.capacity() < length) {
+			chars = CharBuffer.allocate(length);
+			if (length <= maxCachedBufferSize) {
+				charBuffers.set(chars);
+			}
+		}
+		chars.clear();
+		return chars;
+	}
+
+	/**
+	 * Determines the charset of a Windows code page, as found in the
+	 * PR_MESSAGE_CODEPAGE (0x3FFD) and PR_INTERNET_CPID (0x3FDE) properties.
+	 *
+	 * @param codePage
+	 *            The number of the code page.
+	 * @return The charset or null if the code page is unknown or not
+	 *         supported by the JDK.
+	 */
+	public static Charset getCharset(int codePage) {
+		switch (codePage) {
+			case 1200 :
+				return StandardCharsets.UTF_16LE;
+			case 1201 :
+				return StandardCharsets.UTF_16BE;
+			case 20127 :
+				return StandardCharsets.US_ASCII;
+			case 28591 :
+				return StandardCharsets.ISO_8859_1;
+			case 65001 :
+				return StandardCharsets.UTF_8;
+			case 932 :
+				return getCharset("windows-31j");
+			case 936 :
+				return getCharset("GBK");
+			case 949 :
+				return getCharset("x-windows-949");
+			case 950 :
+				return getCharset("x-windows-950");
+			case 20866 :
+				return getCharset("KOI8-R");
+			case 21866 :
+				return getCharset("KOI8-U");
+			case 50220 :
+			case 50221 :
+			case 50222 :
+				return getCharset("ISO-2022-JP");
+			case 51932 :
+				return getCharset("EUC-JP");
+			case 51949 :
+				return getCharset("EUC-KR");
+			case 54936 :
+				return getCharset("GB18030");
+			default :
+				if (codePage > 28591 && codePage <= 28605) {
+					// ISO-8859-2 to ISO-8859-15
+					return getCharset("ISO-8859-" + (codePage - 28590));
+				}
+				Charset charset = getCharset("windows-" + codePage);
+				if (charset == null) {
+					charset = getCharset("x-windows-" + codePage);
+				}
+				if (charset == null) {
+					charset = getCharset("IBM" + codePage);
+				}
+				return charset;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            The name of a charset.
+	 * @return The charset or null if it is not supported.
+	 */
+	private static Charset getCharset(String name) {
+		try {
+			return Charset.isSupported(name) ? Charset.forName(name) : null;
+		} catch (final IllegalCharsetNameException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param charset
+	 *            A charset.
+	 * @return Whether the {@link String} constructor decodes the charset
+	 *         faster than a {@link CharsetDecoder}.
+	 */
+	private static boolean isArrayCharset(Charset charset) {
+		return StandardCharsets.UTF_16LE.equals(charset) || StandardCharsets.UTF_8.equals(charset)
+				|| StandardCharsets.ISO_8859_1.equals(charset) || StandardCharsets.US_ASCII.equals(charset);
+	}
+}
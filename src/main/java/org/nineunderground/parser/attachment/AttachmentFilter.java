@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser.attachment;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A filter on the metadata of file attachments (see
+ * {@link org.nineunderground.parser.MsgParser#setAttachmentFilter(Predicate)}).
+ * The filter is evaluated before the data of an attachment is read, the size
+ * is taken from the size of the data stream. An attachment is accepted if it
+ * meets all conditions that have been set, an attachment without the field a
+ * condition refers to is rejected.
+ *
+ * @author inaki
+ */
+public class AttachmentFilter implements Predicate<FileAttachment> {
+
+	private final Set<String> extensions = new HashSet<>();
+	private final Set<String> mimeTypes = new HashSet<>();
+	private long minSize = 0;
+	private long maxSize = Long.MAX_VALUE;
+	private Pattern namePattern = null;
+
+	/**
+	 * Accepts attachments with the given file extensions only. Case and
+	 * leading dots are ignored.
+	 *
+	 * @param extensions
+	 *            The extensions (e.g., "pdf").
+	 * @return This filter.
+	 */
+	public AttachmentFilter extensions(String... extensions) {
+		for (final String extension : extensions) {
+			this.extensions.add(normalizeExtension(extension));
+		}
+		return this;
+	}
+
+	/**
+	 * Accepts attachments with the given MIME types only. A type may end with
+	 * "/*" to accept all of its subtypes (e.g., "image/*"). Case is ignored.
+	 *
+	 * @param mimeTypes
+	 *            The MIME types (e.g., "application/pdf").
+	 * @return This filter.
+	 */
+	public AttachmentFilter mimeTypes(String... mimeTypes) {
+		for (final String mimeType : mimeTypes) {
+			this.mimeTypes.add(mimeType.toLowerCase(Locale.ROOT));
+		}
+		return this;
+	}
+
+	/**
+	 * Accepts attachments whose long (or, if not available, short) filename
+	 * matches the given glob pattern only. "*" matches any number of
+	 * characters, "?" a single one. Case is ignored.
+	 *
+	 * @param glob
+	 *            The pattern (e.g., "invoice*.pdf").
+	 * @return This filter.
+	 */
+	public AttachmentFilter name(String glob) {
+		final StringBuilder regex = new StringBuilder();
+		for (final char c : glob.toCharArray()) {
+			if (c == '*') {
+				regex.append(".*");
+			} else if (c == '?') {
+				regex.append('.');
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		namePattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+		return this;
+	}
+
+	private static String normalizeExtension(String extension) {
+		int start = 0;
+		while (start < extension.length() && extension.charAt(start) == '.') {
+			start++;
+		}
+		return extension.substring(start).trim().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Accepts attachments of the given size in bytes only.
+	 *
+	 * @param minSize
+	 *            The minimum size.
+	 * @param maxSize
+	 *            The maximum size.
+	 * @return This filter.
+	 */
+	public AttachmentFilter sizeRange(long minSize, long maxSize) {
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		return this;
+	}
+
+	@Override
+	public boolean test(FileAttachment attachment) {
+		final String name = attachment.getLongFilename() != null ? attachment.getLongFilename()
+				: attachment.getFilename();
+		if (!extensions.isEmpty()) {
+			String extension = attachment.getExtension();
+			if (extension == null && name != null && name.lastIndexOf('.') >= 0) {
+				extension = name.substring(name.lastIndexOf('.'));
+			}
+			if (extension == null || !extensions.contains(normalizeExtension(extension))) {
+				return false;
+			}
+		}
+		if (!mimeTypes.isEmpty()) {
+			final String mimeType = attachment.getMimeTag();
+			if (mimeType == null) {
+				return false;
+			}
+			final String type = mimeType.trim().toLowerCase(Locale.ROOT);
+			if (!mimeTypes.contains(type)
+					&& (type.indexOf('/') < 0 || !mimeTypes.contains(type.substring(0, type.indexOf('/')) + "/*"))) {
+				return false;
+			}
+		}
+		if (attachment.getSize() < minSize || attachment.getSize() > maxSize) {
+			return false;
+		}
+		if (namePattern != null && (name == null || !namePattern.matcher(name).matches())) {
+			return false;
+		}
+		return true;
+	}
+}
@@ -33,14 +33,25 @@
  */
 package org.nineunderground.parser.attachment;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.nineunderground.parser.DeferredValue;
 import org.nineunderground.parser.MessageProperty;
+import org.nineunderground.parser.PropertyContainer;
+import org.nineunderground.parser.SpilledValue;
+import org.nineunderground.parser.cfb.BufferPool;
+import org.nineunderground.parser.cfb.ByteBufferInputStream;
 
 /**
  * The Class FileAttachment.
  *
  * @author inaki
  */
-public class FileAttachment implements Attachment {
+public class FileAttachment implements Attachment, PropertyContainer {
 
 	/**
 	 * The (by Outlook) shortened filename of the attachment.
@@ -61,20 +72,79 @@ public class FileAttachment implements Attachment {
 	 * The attachment itself as a byte array.
 	 */
 	protected byte[] data = null;
+	/**
+	 * The attachment itself as a read-only buffer, if it has been parsed from
+	 * a buffer.
+	 */
+	protected ByteBuffer dataBuffer = null;
+	/**
+	 * The attachment itself, if it has been parsed in lazy mode and not been
+	 * read yet.
+	 */
+	protected DeferredValue deferredData = null;
+	/**
+	 * The attachment itself, if it has been written to a temporary file.
+	 */
+	protected SpilledValue spilledData = null;
 	/**
 	 * The size of the attachment.
 	 */
 	protected long size = -1;
 
 	/**
-	 * Gets the data.
+	 * Reads the attachment data, if this has not been done yet, and copies
+	 * data that is still held by the memory mapped .msg file. Afterwards the
+	 * attachment no longer depends on the file.
+	 */
+	public void detach() {
+		resolveData();
+		if (dataBuffer != null && dataBuffer.isDirect()) {
+			dataBuffer = ((ByteBuffer) DeferredValue.detach(dataBuffer)).asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Gets the data. If the attachment is held by a buffer (see
+	 * {@link #getDataBuffer()}), a copy of its content is returned.
 	 *
 	 * @return the data
 	 */
 	public byte[] getData() {
+		if (spilledData != null) {
+			final ByteBuffer buffer = (ByteBuffer) spilledData.get();
+			final byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return bytes;
+		}
+		resolveData();
+		if (data == null && dataBuffer != null) {
+			final byte[] bytes = new byte[dataBuffer.remaining()];
+			dataBuffer.duplicate().get(bytes);
+			return bytes;
+		}
 		return data;
 	}
 
+	/**
+	 * Gets the data as a read-only buffer without copying it. Data that has
+	 * been spilled to a temporary file is read from the file on every call.
+	 *
+	 * @return the data buffer
+	 */
+	public ByteBuffer getDataBuffer() {
+		if (spilledData != null) {
+			return (ByteBuffer) spilledData.get();
+		}
+		resolveData();
+		if (dataBuffer != null) {
+			return dataBuffer.duplicate();
+		}
+		if (data != null) {
+			return ByteBuffer.wrap(data).asReadOnlyBuffer();
+		}
+		return null;
+	}
+
 	/**
 	 * Gets the extension.
 	 *
@@ -120,6 +190,47 @@ public class FileAttachment implements Attachment {
 		return size;
 	}
 
+	/**
+	 * Opens the data for reading. If the message has been parsed in lazy mode
+	 * (see {@link org.nineunderground.parser.MsgParser#setLazy(boolean)}) and
+	 * the data has not been read yet, it is streamed from the .msg file
+	 * without holding all of it in memory. Otherwise the data read before is
+	 * returned.
+	 *
+	 * @return An input stream reading the data or null if there is no data.
+	 * @throws IOException
+	 *             Thrown if the data could not be read.
+	 */
+	public InputStream openStream() throws IOException {
+		if (spilledData != null) {
+			return spilledData.openStream();
+		}
+		if (deferredData != null) {
+			return deferredData.openStream();
+		}
+		if (dataBuffer != null) {
+			return new ByteBufferInputStream(dataBuffer);
+		}
+		if (data != null) {
+			return new ByteArrayInputStream(data);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the deferred attachment data, if any.
+	 */
+	private void resolveData() {
+		if (deferredData != null) {
+			final Object value = deferredData.get();
+			if (value instanceof ByteBuffer) {
+				this.setDataBuffer((ByteBuffer) value);
+			} else {
+				this.setData((byte[]) value);
+			}
+		}
+	}
+
 	/**
 	 * Sets the data.
 	 *
@@ -128,6 +239,22 @@ public class FileAttachment implements Attachment {
 	 */
 	public void setData(byte[] data) {
 		this.data = data;
+		this.dataBuffer = null;
+		this.deferredData = null;
+		this.spilledData = null;
+	}
+
+	/**
+	 * Sets the data buffer.
+	 *
+	 * @param dataBuffer
+	 *            the data buffer to set
+	 */
+	public void setDataBuffer(ByteBuffer dataBuffer) {
+		this.dataBuffer = dataBuffer == null ? null : dataBuffer.asReadOnlyBuffer();
+		this.data = null;
+		this.deferredData = null;
+		this.spilledData = null;
 	}
 
 	/**
@@ -179,26 +306,44 @@ public class FileAttachment implements Attachment {
 	 * @throws ClassCastException
 	 *             the class cast exception
 	 */
+	@Override
 	public void setProperty(MessageProperty msgProp) throws ClassCastException {
-		String name = msgProp.getClazz();
 		final Object value = msgProp.getData();
 		final int size = msgProp.getSize();
 
-		if (name == null || value == null)
+		if (value == null)
 			return;
-		name = name.intern();
 
-		if (name == "3701") {
-			this.setSize(size);
-			this.setData((byte[]) value);
-		} else if (name == "3704") {
-			this.setFilename((String) value);
-		} else if (name == "3707") {
-			this.setLongFilename((String) value);
-		} else if (name == "370e") {
-			this.setMimeTag((String) value);
-		} else if (name == "3703") {
-			this.setExtension((String) value);
+		switch (msgProp.getPropertyId()) {
+			case 0x3701 : // ATTACH DATA
+				this.setSize(size);
+				if (value instanceof DeferredValue) {
+					// read on first access
+					this.data = null;
+					this.dataBuffer = null;
+					this.deferredData = (DeferredValue) value;
+				} else if (value instanceof SpilledValue) {
+					this.data = null;
+					this.dataBuffer = null;
+					this.spilledData = (SpilledValue) value;
+				} else if (value instanceof ByteBuffer) {
+					this.setDataBuffer((ByteBuffer) value);
+				} else {
+					this.setData((byte[]) value);
+				}
+				break;
+			case 0x3704 : // ATTACH FILENAME
+				this.setFilename((String) DeferredValue.resolve(value));
+				break;
+			case 0x3707 : // ATTACH LONG FILENAME
+				this.setLongFilename((String) DeferredValue.resolve(value));
+				break;
+			case 0x370e : // ATTACH MIME TAG
+				this.setMimeTag((String) DeferredValue.resolve(value));
+				break;
+			case 0x3703 : // ATTACH EXTENSION
+				this.setExtension((String) DeferredValue.resolve(value));
+				break;
 		}
 	}
 
@@ -212,6 +357,51 @@ public class FileAttachment implements Attachment {
 		this.size = size;
 	}
 
+	/**
+	 * Writes the data to the given channel the same way
+	 * {@link #openStream()} reads it, so the data does not need to be held in
+	 * memory at once.
+	 *
+	 * @param channel
+	 *            The channel the data is written to, which is not closed.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             Thrown if the data could not be read or written.
+	 */
+	public long transferTo(WritableByteChannel channel) throws IOException {
+		if (spilledData != null) {
+			return spilledData.transferTo(channel);
+		}
+		if (deferredData == null && dataBuffer != null) {
+			final ByteBuffer source = dataBuffer.duplicate();
+			long written = 0;
+			while (source.hasRemaining()) {
+				written += channel.write(source);
+			}
+			return written;
+		}
+		final InputStream in = openStream();
+		if (in == null) {
+			return 0;
+		}
+		final ByteBuffer chunk = BufferPool.acquire(64 * 1024);
+		try {
+			final byte[] buffer = chunk.array();
+			long written = 0;
+			int read;
+			while ((read = in.read(buffer, 0, chunk.capacity())) > 0) {
+				chunk.clear().limit(read);
+				while (chunk.hasRemaining()) {
+					written += channel.write(chunk);
+				}
+			}
+			return written;
+		} finally {
+			BufferPool.release(chunk);
+			in.close();
+		}
+	}
+
 	/**
 	 * Returns either the long filename or the short filename, depending on
 	 * which is available.
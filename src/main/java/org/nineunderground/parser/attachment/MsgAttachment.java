@@ -33,6 +33,8 @@
  */
 package org.nineunderground.parser.attachment;
 
+import java.util.function.Supplier;
+
 import org.nineunderground.parser.Message;
 
 /**
@@ -48,22 +50,57 @@ public class MsgAttachment implements Attachment {
 	Message message = null;
 
 	/**
-	 * Gets the message.
+	 * Parses the attached message on first access, if it has not been parsed
+	 * together with the message it is attached to.
+	 */
+	Supplier<Message> messageLoader = null;
+
+	/**
+	 * Gets the message. If it has not been parsed yet, it is parsed now, only
+	 * once even if several threads ask for it at the same time.
 	 *
 	 * @return the message
+	 * @throws java.io.UncheckedIOException
+	 *             Thrown if the message could not be parsed, e.g. because the
+	 *             message it is attached to has been closed.
 	 */
-	public Message getMessage() {
+	public synchronized Message getMessage() {
+		if (message == null && messageLoader != null) {
+			message = messageLoader.get();
+			messageLoader = null;
+		}
 		return message;
 	}
 
+	/**
+	 * @return Whether the message has already been parsed, i.e. there is a
+	 *         message that is not parsed on first access.
+	 */
+	public synchronized boolean isLoaded() {
+		return message != null;
+	}
+
 	/**
 	 * Sets the message.
 	 *
 	 * @param message
 	 *            the message to set
 	 */
-	public void setMessage(Message message) {
+	public synchronized void setMessage(Message message) {
 		this.message = message;
+		this.messageLoader = null;
+	}
+
+	/**
+	 * Sets the function that parses the message on first access (see
+	 * {@link #getMessage()}).
+	 *
+	 * @param messageLoader
+	 *            The function parsing the message.
+	 */
+	public synchronized void setMessageLoader(Supplier<Message> messageLoader) {
+		this.message = null;
+		this.messageLoader = messageLoader;
 	}
 
 	/**
@@ -74,7 +111,7 @@ public class MsgAttachment implements Attachment {
 	 */
 	@Override
 	public String toString() {
-		if (this.message == null)
+		if (this.getMessage() == null)
 			return null;
 		return "Mail Attachment: " + this.message.toString();
 	}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser.cfb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * A per-thread pool of buffers for reading streams whose content is only
+ * needed for a short time, e.g. while a properties stream is decoded. Every
+ * thread keeps a few heap buffers of up to {@link #MAX_POOLED_SIZE} bytes and
+ * no more than {@link #MAX_POOLED_BYTES} bytes in total, larger buffers are
+ * allocated when needed and left to the garbage collector. A thread can drop
+ * its buffers with {@link #clear()}, e.g. before it is returned to a thread
+ * pool.
+ *
+ * @author inaki
+ */
+public final class BufferPool {
+
+	/**
+	 * The size of the smallest buffer handed out, smaller requests are
+	 * rounded up so the buffer can be reused for other streams.
+	 */
+	private static final int MIN_BUFFER_SIZE = 4 * 1024;
+	/**
+	 * The size of the largest buffer kept in a pool.
+	 */
+	private static final int MAX_POOLED_SIZE = 1024 * 1024;
+	/**
+	 * The number of buffers each thread keeps.
+	 */
+	private static final int MAX_POOLED_COUNT = 8;
+	/**
+	 * The number of bytes the buffers kept by each thread may hold in total.
+	 */
+	private static final int MAX_POOLED_BYTES = 2 * 1024 * 1024;
+
+	private static final ThreadLocal<ArrayDeque<ByteBuffer>> buffers = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private BufferPool() {
+	}
+
+	/**
+	 * Takes a heap buffer from the pool of the current thread or allocates a
+	 * new one. The buffer is backed by an array whose first bytes are the
+	 * content of the buffer.
+	 *
+	 * @param size
+	 *            The number of bytes needed.
+	 * @return A writable, little endian buffer whose position is 0 and whose
+	 *         limit is the given size.
+	 */
+	public static ByteBuffer acquire(int size) {
+		final ArrayDeque<ByteBuffer> pool = buffers.get();
+		ByteBuffer buffer = null;
+		for (final Iterator<ByteBuffer> it = pool.iterator(); it.hasNext();) {
+			final ByteBuffer pooled = it.next();
+			if (pooled.capacity() >= size) {
+				it.remove();
+				buffer = pooled;
+				break;
+			}
+		}
+		if (buffer == null) {
+			// pooled sizes are powers of two, so buffers fit many requests
+			final int capacity = size > MAX_POOLED_SIZE ? size
+					: Math.max(MIN_BUFFER_SIZE, Integer.highestOneBit(Math.max(size - 1, 1)) << 1);
+			buffer = ByteBuffer.allocate(capacity);
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Drops all buffers kept for the current thread.
+	 */
+	public static void clear() {
+		buffers.remove();
+	}
+
+	/**
+	 * Hands a buffer back to the pool of the current thread. The buffer must
+	 * not be used afterwards. Read-only and direct buffers, which are never
+	 * handed out by the pool (e.g. views returned by
+	 * {@link CompoundFile#getTransientStreamBuffer(int)}), are ignored, as
+	 * are buffers that are too large or do not fit into the pool any more.
+	 *
+	 * @param buffer
+	 *            The buffer or null.
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.isReadOnly() || buffer.isDirect() || buffer.capacity() > MAX_POOLED_SIZE) {
+			return;
+		}
+		final ArrayDeque<ByteBuffer> pool = buffers.get();
+		long pooledBytes = buffer.capacity();
+		for (final ByteBuffer pooled : pool) {
+			pooledBytes += pooled.capacity();
+		}
+		if (pool.size() < MAX_POOLED_COUNT && pooledBytes <= MAX_POOLED_BYTES) {
+			pool.push(buffer);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser.cfb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only access to the storages and streams of a compound file. Entries
+ * are addressed by their index, the root storage always has the index
+ * {@link #ROOT}.
+ *
+ * @author inaki
+ */
+public interface CompoundFile extends Closeable {
+
+	/**
+	 * The index of the root storage.
+	 */
+	int ROOT = 0;
+
+	/**
+	 * Returns the index of the child at the given position within a storage.
+	 *
+	 * @param storage
+	 *            The index of the storage.
+	 * @param position
+	 *            The position of the child, starting at 0.
+	 * @return The index of the child entry.
+	 */
+	int getChild(int storage, int position);
+
+	/**
+	 * @param storage
+	 *            The index of the storage.
+	 * @return The number of direct children of the storage.
+	 */
+	int getChildCount(int storage);
+
+	/**
+	 * @param entry
+	 *            The index of the entry.
+	 * @return The name of the entry.
+	 */
+	String getName(int entry);
+
+	/**
+	 * @param entry
+	 *            The index of the entry.
+	 * @return The size of the stream in bytes.
+	 */
+	long getSize(int entry);
+
+	/**
+	 * Returns the content of a stream as a read-only, little endian buffer.
+	 *
+	 * @param entry
+	 *            The index of the stream.
+	 * @return The stream content.
+	 * @throws IOException
+	 *             Thrown if the stream could not be read.
+	 */
+	ByteBuffer getStreamBuffer(int entry) throws IOException;
+
+	/**
+	 * Returns a copy of the content of a stream.
+	 *
+	 * @param entry
+	 *            The index of the stream.
+	 * @return The bytes of the stream.
+	 * @throws IOException
+	 *             Thrown if the stream could not be read.
+	 */
+	byte[] getStreamBytes(int entry) throws IOException;
+
+	/**
+	 * Returns the content of a stream that is only needed until it has been
+	 * decoded. Unlike {@link #getStreamBuffer(int)}, a stream that cannot be
+	 * returned as a view is copied into a buffer of the {@link BufferPool},
+	 * so the caller must hand the buffer back with
+	 * {@link BufferPool#release(ByteBuffer)} and must not keep any part of
+	 * it.
+	 *
+	 * @param entry
+	 *            The index of the stream.
+	 * @return The stream content as a little endian buffer.
+	 * @throws IOException
+	 *             Thrown if the stream could not be read.
+	 */
+	ByteBuffer getTransientStreamBuffer(int entry) throws IOException;
+
+	/**
+	 * @param entry
+	 *            The index of the entry.
+	 * @return Whether the entry is a storage (or the root storage).
+	 */
+	boolean isStorage(int entry);
+
+	/**
+	 * @param entry
+	 *            The index of the entry.
+	 * @return Whether the entry is a stream.
+	 */
+	boolean isStream(int entry);
+
+	/**
+	 * Opens a stream for reading its content without holding all of it in
+	 * memory at once.
+	 *
+	 * @param entry
+	 *            The index of the stream.
+	 * @return An input stream reading the content of the stream.
+	 * @throws IOException
+	 *             Thrown if the stream could not be opened.
+	 */
+	InputStream openStream(int entry) throws IOException;
+}
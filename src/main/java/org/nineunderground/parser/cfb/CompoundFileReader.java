@@ -0,0 +1,722 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser.cfb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A small, read-only reader for the Compound File Binary format that .msg
+ * files are stored in. The header, the allocation tables and the directory
+ * are decoded once when the reader is created, stream contents are only
+ * touched when they are requested.
+ * <p>
+ * Streams are handed out as read-only {@link ByteBuffer} views of the source
+ * buffer wherever their sectors are stored contiguously. Otherwise their
+ * sectors are copied into a new buffer. The mini stream, which holds all
+ * small streams, is located (or, if fragmented, copied) only once. Views keep
+ * the source buffer, e.g. a file mapping, reachable for as long as they are
+ * used, so callers that keep streams beyond the lifetime of the reader can
+ * have them copied instead (see {@link #setCopyStreams(boolean)}).
+ *
+ * @author inaki
+ */
+public class CompoundFileReader implements CompoundFile {
+
+	/**
+	 * Maps the given file into memory and decodes it. Only the pages of the
+	 * file that are actually read are loaded by the operating system.
+	 *
+	 * @param file
+	 *            The compound file.
+	 * @return The reader for the file.
+	 * @throws IOException
+	 *             Thrown if the file could not be mapped or is not a valid
+	 *             compound file.
+	 */
+	public static CompoundFileReader open(File file) throws IOException {
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File is too large to be mapped: " + file);
+			}
+			// the mapping stays valid after the channel has been closed
+			return new CompoundFileReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static final long SIGNATURE = 0xE11AB1A1E011CFD0L;
+	private static final int END_OF_CHAIN = 0xFFFFFFFE;
+	private static final int HEADER_DIFAT_ENTRIES = 109;
+	private static final int DIRECTORY_ENTRY_SIZE = 128;
+	private static final byte TYPE_STORAGE = 1;
+	private static final byte TYPE_STREAM = 2;
+	private static final byte TYPE_ROOT = 5;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	/** The compound file, positioned at the start of its header. */
+	private final ByteBuffer buffer;
+	private final int sectorShift;
+	private final int sectorSize;
+	private final int sectorCount;
+	private final int miniSectorShift;
+	private final long miniStreamCutoff;
+	/** The file allocation table. */
+	private final int[] fat;
+	/** The allocation table of the mini stream. */
+	private final int[] miniFat;
+	/** The sectors the mini stream is stored in, in stream order. */
+	private final int[] miniStreamSectors;
+	/** The content of the mini stream, located on first use. */
+	private ByteBuffer miniStream;
+
+	private final String[] names;
+	private final byte[] types;
+	private final int[] startSectors;
+	private final long[] sizes;
+	/**
+	 * The children of all storages. The children of entry
+	 * <code>i</code> are stored from <code>childOffsets[i]</code> up to
+	 * <code>childOffsets[i + 1]</code>.
+	 */
+	private final int[] children;
+	private final int[] childOffsets;
+	private boolean closed = false;
+	/** Whether {@link #getStreamBuffer(int)} never returns views. */
+	private boolean copyStreams = false;
+
+	/**
+	 * Decodes the header, allocation tables and directory of the compound
+	 * file held by the given buffer. The buffer is read from its current
+	 * position up to its limit and neither its position nor its content is
+	 * changed.
+	 *
+	 * @param source
+	 *            The buffer holding the compound file.
+	 * @throws IOException
+	 *             Thrown if the buffer does not contain a valid compound file.
+	 */
+	public CompoundFileReader(ByteBuffer source) throws IOException {
+		this.buffer = source.slice().order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.limit() < 512 || buffer.getLong(0) != SIGNATURE) {
+			throw new IOException("Invalid compound file signature");
+		}
+		final int majorVersion = buffer.getShort(0x1a) & 0xffff;
+		sectorShift = buffer.getShort(0x1e) & 0xffff;
+		miniSectorShift = buffer.getShort(0x20) & 0xffff;
+		if (sectorShift != 9 && sectorShift != 12 || miniSectorShift >= sectorShift) {
+			throw new IOException("Unsupported sector size: " + sectorShift + "/" + miniSectorShift);
+		}
+		sectorSize = 1 << sectorShift;
+		sectorCount = (int) ((buffer.limit() + (long) sectorSize - 1) >> sectorShift) - 1;
+		miniStreamCutoff = buffer.getInt(0x38) & 0xffffffffL;
+
+		fat = readFat(buffer.getInt(0x2c), buffer.getInt(0x44), buffer.getInt(0x48));
+
+		// the directory is decoded into parallel arrays, one slot per entry
+		final int[] directorySectors = getChain(buffer.getInt(0x30));
+		final int entriesPerSector = sectorSize / DIRECTORY_ENTRY_SIZE;
+		final int entryCount = directorySectors.length * entriesPerSector;
+		names = new String[entryCount];
+		types = new byte[entryCount];
+		startSectors = new int[entryCount];
+		sizes = new long[entryCount];
+		final int[] leftSiblings = new int[entryCount];
+		final int[] rightSiblings = new int[entryCount];
+		final int[] firstChildren = new int[entryCount];
+		for (int i = 0; i < entryCount; i++) {
+			final int offset = getSectorOffset(directorySectors[i / entriesPerSector])
+					+ (i % entriesPerSector) * DIRECTORY_ENTRY_SIZE;
+			types[i] = buffer.get(offset + 0x42);
+			final int nameLength = Math.min(buffer.getShort(offset + 0x40) & 0xffff, 64) / 2 - 1;
+			final char[] name = new char[Math.max(nameLength, 0)];
+			for (int c = 0; c < name.length; c++) {
+				name[c] = buffer.getChar(offset + 2 * c);
+			}
+			names[i] = new String(name);
+			leftSiblings[i] = buffer.getInt(offset + 0x44);
+			rightSiblings[i] = buffer.getInt(offset + 0x48);
+			firstChildren[i] = buffer.getInt(offset + 0x4c);
+			startSectors[i] = buffer.getInt(offset + 0x74);
+			// version 3 files only define the lower 32 bits of the size
+			sizes[i] = majorVersion == 3 ? buffer.getInt(offset + 0x78) & 0xffffffffL : buffer.getLong(offset + 0x78);
+		}
+		if (entryCount == 0 || types[ROOT] != TYPE_ROOT) {
+			throw new IOException("Missing root entry");
+		}
+
+		// the siblings of a storage form a tree, which is walked node first,
+		// then the right and then the left subtree. this is the order POI
+		// lists the entries of a directory in, so properties that are set
+		// more than once end up with the same value no matter which reader
+		// has been used
+		children = new int[entryCount];
+		childOffsets = new int[entryCount + 1];
+		final boolean[] visited = new boolean[entryCount];
+		final int[] stack = new int[entryCount];
+		int count = 0;
+		for (int i = 0; i < entryCount; i++) {
+			childOffsets[i] = count;
+			if (!isStorage(i)) {
+				continue;
+			}
+			int sp = 0;
+			final int first = firstChildren[i];
+			if (first >= 0 && first < entryCount && !visited[first]) {
+				visited[first] = true;
+				stack[sp++] = first;
+			}
+			while (sp > 0) {
+				final int node = stack[--sp];
+				children[count++] = node;
+				final int left = leftSiblings[node];
+				if (left >= 0 && left < entryCount && !visited[left]) {
+					visited[left] = true;
+					stack[sp++] = left;
+				}
+				final int right = rightSiblings[node];
+				if (right >= 0 && right < entryCount && !visited[right]) {
+					visited[right] = true;
+					stack[sp++] = right;
+				}
+			}
+		}
+		childOffsets[entryCount] = count;
+
+		miniFat = getChainInts(buffer.getInt(0x3c));
+		miniStreamSectors = sizes[ROOT] > 0 ? getChain(startSectors[ROOT]) : new int[0];
+	}
+
+	/**
+	 * The buffer is left to the garbage collector, there are no other
+	 * resources to be released. Streams can no longer be read afterwards, the
+	 * directory stays accessible.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Copies the given number of bytes of a buffer into a byte array.
+	 */
+	private void copy(ByteBuffer source, int offset, byte[] dst, int dstOffset, int length) throws IOException {
+		if (offset + (long) length > source.limit()) {
+			throw new IOException("Stream exceeds the end of the compound file");
+		}
+		final ByteBuffer src = source.duplicate();
+		src.position(offset);
+		src.get(dst, dstOffset, length);
+	}
+
+	/**
+	 * Follows the sector chain starting at the given sector.
+	 *
+	 * @return The sectors of the chain in stream order.
+	 */
+	private int[] getChain(int start) throws IOException {
+		int[] chain = new int[16];
+		int length = 0;
+		for (int sector = start; sector != END_OF_CHAIN; sector = getNextSector(sector)) {
+			if (length == sectorCount) {
+				throw new IOException("Sector chain does not terminate");
+			}
+			if (length == chain.length) {
+				final int[] grown = new int[chain.length * 2];
+				System.arraycopy(chain, 0, grown, 0, length);
+				chain = grown;
+			}
+			chain[length++] = sector;
+		}
+		final int[] result = new int[length];
+		System.arraycopy(chain, 0, result, 0, length);
+		return result;
+	}
+
+	/**
+	 * Reads the sector chain starting at the given sector as a table of
+	 * integers.
+	 */
+	private int[] getChainInts(int start) throws IOException {
+		if (start == END_OF_CHAIN || start < 0) {
+			return new int[0];
+		}
+		final int[] chain = getChain(start);
+		final int perSector = sectorSize >> 2;
+		final int[] result = new int[chain.length * perSector];
+		for (int i = 0; i < chain.length; i++) {
+			getInts(getSectorOffset(chain[i]), result, i * perSector, perSector);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the index of the child at the given position within a storage.
+	 *
+	 * @param storage
+	 *            The index of the storage.
+	 * @param position
+	 *            The position of the child, starting at 0.
+	 * @return The index of the child entry.
+	 */
+	@Override
+	public int getChild(int storage, int position) {
+		return children[childOffsets[storage] + position];
+	}
+
+	/**
+	 * @param storage
+	 *            The index of the storage.
+	 * @return The number of direct children of the storage.
+	 */
+	@Override
+	public int getChildCount(int storage) {
+		return childOffsets[storage + 1] - childOffsets[storage];
+	}
+
+	/**
+	 * Returns the offset at which the given stream starts within its source
+	 * (see {@link #getSource(int)}) if all of its sectors are stored one after
+	 * another, or -1 otherwise.
+	 */
+	private int getContiguousOffset(int entry) throws IOException {
+		final int length = (int) sizes[entry];
+		if (isInMiniStream(entry)) {
+			final int miniSectorSize = 1 << miniSectorShift;
+			int miniSector = startSectors[entry];
+			for (int read = miniSectorSize; read < length; read += miniSectorSize) {
+				final int next = getNextMiniSector(miniSector);
+				if (next != miniSector + 1) {
+					return -1;
+				}
+				miniSector = next;
+			}
+			return getMiniSectorOffset(startSectors[entry]);
+		}
+		int sector = startSectors[entry];
+		final int start = getSectorOffset(sector);
+		for (int read = sectorSize; read < length; read += sectorSize) {
+			sector = getNextSector(sector);
+			if (sector != startSectors[entry] + read / sectorSize) {
+				return -1;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * @return The number of entries in the directory, including unused ones.
+	 */
+	public int getEntryCount() {
+		return names.length;
+	}
+
+	private void getInts(int offset, int[] dst, int dstOffset, int length) throws IOException {
+		if (offset + 4L * length > buffer.limit()) {
+			throw new IOException("Table exceeds the end of the compound file");
+		}
+		for (int i = 0; i < length; i++) {
+			dst[dstOffset + i] = buffer.getInt(offset + 4 * i);
+		}
+	}
+
+	/**
+	 * Returns the mini stream, either as a view of the source buffer or, if
+	 * its sectors are not stored contiguously, as a copy.
+	 */
+	private ByteBuffer getMiniStream() throws IOException {
+		if (miniStream == null) {
+			if (sizes[ROOT] > Integer.MAX_VALUE) {
+				throw new IOException("Mini stream is too large: " + sizes[ROOT]);
+			}
+			final int length = (int) sizes[ROOT];
+			if (length > (long) miniStreamSectors.length << sectorShift) {
+				throw new IOException("Mini stream exceeds its sectors");
+			}
+			boolean contiguous = true;
+			for (int i = 1; i < miniStreamSectors.length && contiguous; i++) {
+				contiguous = miniStreamSectors[i] == miniStreamSectors[0] + i;
+			}
+			if (length == 0) {
+				miniStream = EMPTY;
+			} else if (contiguous) {
+				miniStream = slice(buffer, getSectorOffset(miniStreamSectors[0]), length);
+			} else {
+				final byte[] bytes = new byte[length];
+				for (int i = 0; i < miniStreamSectors.length; i++) {
+					final int read = i << sectorShift;
+					if (read < length) {
+						copy(buffer, getSectorOffset(miniStreamSectors[i]), bytes, read,
+								Math.min(sectorSize, length - read));
+					}
+				}
+				miniStream = ByteBuffer.wrap(bytes).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		return miniStream;
+	}
+
+	private int getMiniSectorOffset(int miniSector) throws IOException {
+		if (miniSector < 0 || (long) miniSector << miniSectorShift >= sizes[ROOT]) {
+			throw new IOException("Invalid mini sector " + miniSector);
+		}
+		return miniSector << miniSectorShift;
+	}
+
+	/**
+	 * @param entry
+	 *            The index of the directory entry.
+	 * @return The name of the entry.
+	 */
+	@Override
+	public String getName(int entry) {
+		return names[entry];
+	}
+
+	private int getNextMiniSector(int miniSector) throws IOException {
+		if (miniSector < 0 || miniSector >= miniFat.length) {
+			throw new IOException("Invalid mini sector " + miniSector);
+		}
+		return miniFat[miniSector];
+	}
+
+	private int getNextSector(int sector) throws IOException {
+		if (sector < 0 || sector >= fat.length) {
+			throw new IOException("Invalid sector " + sector);
+		}
+		return fat[sector];
+	}
+
+	private int getSectorOffset(int sector) throws IOException {
+		if (sector < 0 || sector >= sectorCount) {
+			throw new IOException("Invalid sector " + sector);
+		}
+		return (sector + 1) << sectorShift;
+	}
+
+	/**
+	 * @param entry
+	 *            The index of the directory entry.
+	 * @return The size of the stream in bytes.
+	 */
+	@Override
+	public long getSize(int entry) {
+		return sizes[entry];
+	}
+
+	/**
+	 * Returns the content of a stream as a read-only buffer. If all sectors of
+	 * the stream are stored contiguously, the buffer is a view of the source
+	 * buffer and no data is copied, unless {@link #setCopyStreams(boolean)}
+	 * asks for copies.
+	 *
+	 * @param entry
+	 *            The index of the stream.
+	 * @return A read-only, little endian buffer holding the stream content.
+	 * @throws IOException
+	 *             Thrown if the stream could not be read.
+	 */
+	@Override
+	public ByteBuffer getStreamBuffer(int entry) throws IOException {
+		final int length = getStreamLength(entry);
+		if (length == 0) {
+			return EMPTY;
+		}
+		if (copyStreams) {
+			return ByteBuffer.wrap(getStreamBytes(entry)).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		}
+		final int offset = getContiguousOffset(entry);
+		if (offset < 0) {
+			final byte[] bytes = new byte[length];
+			readSectors(entry, bytes);
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return slice(getSource(entry), offset, length);
+	}
+
+	/**
+	 * Returns a copy of the content of a stream.
+	 *
+	 * @param entry
+	 *            The index of the stream.
+	 * @return The bytes of the stream.
+	 * @throws IOException
+	 *             Thrown if the stream could not be read.
+	 */
+	@Override
+	public byte[] getStreamBytes(int entry) throws IOException {
+		final byte[] bytes = new byte[getStreamLength(entry)];
+		if (bytes.length > 0) {
+			final int offset = getContiguousOffset(entry);
+			if (offset < 0) {
+				readSectors(entry, bytes);
+			} else {
+				copy(getSource(entry), offset, bytes, 0, bytes.length);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the content of a stream like {@link #getStreamBuffer(int)}, but
+	 * copies a stream whose sectors are not stored contiguously into a
+	 * pooled buffer instead of a new array.
+	 *
+	 * @param entry
+	 *            The index of the stream.
+	 * @return A little endian buffer holding the stream content.
+	 * @throws IOException
+	 *             Thrown if the stream could not be read.
+	 */
+	@Override
+	public ByteBuffer getTransientStreamBuffer(int entry) throws IOException {
+		final int length = getStreamLength(entry);
+		if (length == 0) {
+			return EMPTY;
+		}
+		final int offset = getContiguousOffset(entry);
+		if (offset < 0) {
+			final ByteBuffer pooled = BufferPool.acquire(length);
+			readSectors(entry, pooled.array(), length);
+			return pooled;
+		}
+		return slice(getSource(entry), offset, length);
+	}
+
+	/**
+	 * Returns the buffer the sectors of the given stream are stored in, that
+	 * is either the mini stream or the compound file itself.
+	 */
+	private ByteBuffer getSource(int entry) throws IOException {
+		return isInMiniStream(entry) ? getMiniStream() : buffer;
+	}
+
+	private int getStreamLength(int entry) throws IOException {
+		if (closed) {
+			throw new IOException("Compound file has been closed");
+		}
+		if (!isStream(entry)) {
+			throw new IOException("Entry " + names[entry] + " is not a stream");
+		}
+		if (sizes[entry] > Integer.MAX_VALUE) {
+			throw new IOException("Stream " + names[entry] + " is too large: " + sizes[entry]);
+		}
+		return (int) sizes[entry];
+	}
+
+	private boolean isInMiniStream(int entry) {
+		return sizes[entry] < miniStreamCutoff;
+	}
+
+	/**
+	 * @param entry
+	 *            The index of the directory entry.
+	 * @return Whether the entry is a storage (or the root storage).
+	 */
+	@Override
+	public boolean isStorage(int entry) {
+		return types[entry] == TYPE_STORAGE || types[entry] == TYPE_ROOT;
+	}
+
+	/**
+	 * @param entry
+	 *            The index of the directory entry.
+	 * @return Whether the entry is a stream.
+	 */
+	@Override
+	public boolean isStream(int entry) {
+		return types[entry] == TYPE_STREAM;
+	}
+
+	/**
+	 * Opens a stream for reading. Streams stored contiguously or in the mini
+	 * stream are read from their buffer (see {@link #getStreamBuffer(int)}),
+	 * any other stream is read sector by sector without copying it first.
+	 *
+	 * @param entry
+	 *            The index of the stream.
+	 * @return An input stream reading the content of the stream.
+	 * @throws IOException
+	 *             Thrown if the stream could not be opened.
+	 */
+	@Override
+	public InputStream openStream(int entry) throws IOException {
+		final int length = getStreamLength(entry);
+		if (length == 0 || isInMiniStream(entry) || getContiguousOffset(entry) >= 0) {
+			return new ByteBufferInputStream(getStreamBuffer(entry));
+		}
+		return new SectorInputStream(startSectors[entry], length);
+	}
+
+	/**
+	 * Collects the file allocation table from the sectors listed in the
+	 * header and in the DIFAT sectors.
+	 */
+	private int[] readFat(int fatSectorCount, int difatSector, int difatSectorCount) throws IOException {
+		if (fatSectorCount < 0 || fatSectorCount > sectorCount) {
+			throw new IOException("Invalid number of FAT sectors: " + fatSectorCount);
+		}
+		final int[] fatSectors = new int[fatSectorCount];
+		final int headerEntries = Math.min(fatSectorCount, HEADER_DIFAT_ENTRIES);
+		getInts(0x4c, fatSectors, 0, headerEntries);
+		final int perDifatSector = (sectorSize >> 2) - 1;
+		int read = headerEntries;
+		for (int i = 0; i < difatSectorCount && read < fatSectorCount; i++) {
+			final int offset = getSectorOffset(difatSector);
+			final int length = Math.min(perDifatSector, fatSectorCount - read);
+			getInts(offset, fatSectors, read, length);
+			read += length;
+			difatSector = buffer.getInt(offset + 4 * perDifatSector);
+		}
+		if (read < fatSectorCount) {
+			throw new IOException("Incomplete DIFAT, found " + read + " of " + fatSectorCount + " FAT sectors");
+		}
+		final int perSector = sectorSize >> 2;
+		final int[] result = new int[fatSectorCount * perSector];
+		for (int i = 0; i < fatSectorCount; i++) {
+			getInts(getSectorOffset(fatSectors[i]), result, i * perSector, perSector);
+		}
+		return result;
+	}
+
+	/**
+	 * Copies a stream sector by sector into the given array.
+	 */
+	private void readSectors(int entry, byte[] dst) throws IOException {
+		readSectors(entry, dst, dst.length);
+	}
+
+	/**
+	 * Copies the first bytes of a stream, following its sector chain.
+	 */
+	private void readSectors(int entry, byte[] dst, int length) throws IOException {
+		if (isInMiniStream(entry)) {
+			final ByteBuffer source = getMiniStream();
+			final int miniSectorSize = 1 << miniSectorShift;
+			int miniSector = startSectors[entry];
+			for (int read = 0; read < length; read += miniSectorSize) {
+				copy(source, getMiniSectorOffset(miniSector), dst, read, Math.min(miniSectorSize, length - read));
+				miniSector = getNextMiniSector(miniSector);
+			}
+		} else {
+			int sector = startSectors[entry];
+			for (int read = 0; read < length; read += sectorSize) {
+				copy(buffer, getSectorOffset(sector), dst, read, Math.min(sectorSize, length - read));
+				sector = getNextSector(sector);
+			}
+		}
+	}
+
+	/**
+	 * Sets whether {@link #getStreamBuffer(int)} copies every stream into a
+	 * new buffer instead of returning views of the source buffer. Streams
+	 * that are only decoded (see {@link #getTransientStreamBuffer(int)}) are
+	 * never copied.
+	 *
+	 * @param copyStreams
+	 *            Whether streams are copied, the default is false.
+	 */
+	public void setCopyStreams(boolean copyStreams) {
+		this.copyStreams = copyStreams;
+	}
+
+	/**
+	 * Returns a read-only, little endian view of a part of a buffer.
+	 */
+	private ByteBuffer slice(ByteBuffer source, int offset, int length) throws IOException {
+		if (offset + (long) length > source.limit()) {
+			throw new IOException("Stream exceeds the end of the compound file");
+		}
+		final ByteBuffer view = source.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		return view.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Reads a stream that is not stored contiguously by following its sector
+	 * chain.
+	 */
+	private class SectorInputStream extends InputStream {
+
+		private int sector;
+		/** The position within the current sector. */
+		private int position = 0;
+		private int remaining;
+
+		SectorInputStream(int sector, int length) {
+			this.sector = sector;
+			this.remaining = length;
+		}
+
+		@Override
+		public int available() {
+			return remaining;
+		}
+
+		/**
+		 * Moves to the next sector once the current one has been read
+		 * completely.
+		 */
+		private void nextSector() throws IOException {
+			if (position == sectorSize) {
+				sector = getNextSector(sector);
+				position = 0;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining == 0) {
+				return -1;
+			}
+			nextSector();
+			final int offset = getSectorOffset(sector) + position;
+			if (offset >= buffer.limit()) {
+				throw new IOException("Stream exceeds the end of the compound file");
+			}
+			final int value = buffer.get(offset) & 0xff;
+			position++;
+			remaining--;
+			return value;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (remaining == 0) {
+				return -1;
+			}
+			nextSector();
+			final int read = Math.min(len, Math.min(sectorSize - position, remaining));
+			copy(buffer, getSectorOffset(sector) + position, b, off, read);
+			position += read;
+			remaining -= read;
+			return read;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.nineunderground.parser.cfb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.poifs.filesystem.DirectoryEntry;
+import org.apache.poi.poifs.filesystem.DocumentEntry;
+import org.apache.poi.poifs.filesystem.DocumentInputStream;
+import org.apache.poi.poifs.filesystem.Entry;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+
+/**
+ * A {@link CompoundFile} backed by a {@link POIFSFileSystem}. This is the
+ * fallback for files the {@link CompoundFileReader} cannot be used for.
+ *
+ * @author inaki
+ */
+public class PoiCompoundFile implements CompoundFile {
+
+	private final POIFSFileSystem fs;
+	/** All entries, each storage is followed by its children later on. */
+	private final Entry[] entries;
+	private final int[] firstChildren;
+	private final int[] childCounts;
+	private boolean closed = false;
+
+	/**
+	 * Indexes all entries of the given file system. The file system is closed
+	 * together with this object.
+	 *
+	 * @param fs
+	 *            The file system holding the compound file.
+	 */
+	public PoiCompoundFile(POIFSFileSystem fs) {
+		this.fs = fs;
+		// a breadth first walk lists the children of every directory one
+		// after another
+		final List<Entry> list = new ArrayList<>();
+		final List<Integer> firsts = new ArrayList<>();
+		list.add(fs.getRoot());
+		for (int i = 0; i < list.size(); i++) {
+			firsts.add(list.size());
+			if (list.get(i).isDirectoryEntry()) {
+				for (final Entry child : (DirectoryEntry) list.get(i)) {
+					list.add(child);
+				}
+			}
+		}
+		entries = list.toArray(new Entry[list.size()]);
+		firstChildren = new int[entries.length];
+		childCounts = new int[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			firstChildren[i] = firsts.get(i);
+			childCounts[i] = (i + 1 < entries.length ? firsts.get(i + 1) : entries.length) - firstChildren[i];
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		fs.close();
+	}
+
+	@Override
+	public int getChild(int storage, int position) {
+		return firstChildren[storage] + position;
+	}
+
+	@Override
+	public int getChildCount(int storage) {
+		return childCounts[storage];
+	}
+
+	@Override
+	public String getName(int entry) {
+		return entries[entry].getName();
+	}
+
+	@Override
+	public long getSize(int entry) {
+		return isStream(entry) ? ((DocumentEntry) entries[entry]).getSize() : 0;
+	}
+
+	@Override
+	public ByteBuffer getStreamBuffer(int entry) throws IOException {
+		return ByteBuffer.wrap(getStreamBytes(entry)).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	public byte[] getStreamBytes(int entry) throws IOException {
+		if (closed) {
+			throw new IOException("Compound file has been closed");
+		}
+		if (!isStream(entry)) {
+			throw new IOException("Entry " + getName(entry) + " is not a stream");
+		}
+		final DocumentEntry de = (DocumentEntry) entries[entry];
+		final byte[] bytes = new byte[de.getSize()];
+		final DocumentInputStream dstream = new DocumentInputStream(de);
+		try {
+			dstream.readFully(bytes);
+		} finally {
+			dstream.close();
+		}
+		return bytes;
+	}
+
+	@Override
+	public ByteBuffer getTransientStreamBuffer(int entry) throws IOException {
+		if (closed) {
+			throw new IOException("Compound file has been closed");
+		}
+		if (!isStream(entry)) {
+			throw new IOException("Entry " + getName(entry) + " is not a stream");
+		}
+		final DocumentEntry de = (DocumentEntry) entries[entry];
+		final ByteBuffer pooled = BufferPool.acquire(de.getSize());
+		final DocumentInputStream dstream = new DocumentInputStream(de);
+		boolean read = false;
+		try {
+			dstream.readFully(pooled.array(), 0, de.getSize());
+			read = true;
+		} finally {
+			dstream.close();
+			if (!read) {
+				BufferPool.release(pooled);
+			}
+		}
+		return pooled;
+	}
+
+	@Override
+	public boolean isStorage(int entry) {
+		return entries[entry].isDirectoryEntry();
+	}
+
+	@Override
+	public boolean isStream(int entry) {
+		return entries[entry].isDocumentEntry();
+	}
+
+	@Override
+	public InputStream openStream(int entry) throws IOException {
+		if (closed) {
+			throw new IOException("Compound file has been closed");
+		}
+		if (!isStream(entry)) {
+			throw new IOException("Entry " + getName(entry) + " is not a stream");
+		}
+		return new DocumentInputStream((DocumentEntry) entries[entry]);
+	}
+}
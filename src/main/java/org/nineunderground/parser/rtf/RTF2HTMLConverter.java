@@ -33,6 +33,8 @@
  */
 package org.nineunderground.parser.rtf;
 
+import org.nineunderground.parser.CancellationToken;
+
 /**
  * The Interface RTF2HTMLConverter.
  *
@@ -43,4 +45,26 @@ public interface RTF2HTMLConverter {
 
 	public String rtf2html(String rtf) throws Exception;
 
+	/**
+	 * Converts RTF to HTML unless the given token is cancelled. The default
+	 * implementation only checks the token before the conversion, converters
+	 * taking long should check it while converting as well.
+	 *
+	 * @param rtf
+	 *            The RTF code to be converted.
+	 * @param token
+	 *            The token to be checked or null.
+	 * @return The HTML code.
+	 * @throws Exception
+	 *             Thrown if the RTF code could not be converted, a
+	 *             {@link java.util.concurrent.CancellationException} if the
+	 *             token has been cancelled.
+	 */
+	public default String rtf2html(String rtf, CancellationToken token) throws Exception {
+		if (token != null) {
+			token.throwIfCancelled();
+		}
+		return this.rtf2html(rtf);
+	}
+
 }
@@ -30,6 +30,8 @@ import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.nineunderground.parser.CancellationToken;
+
 /**
  * The Class SimpleRTF2HTMLConverter.
  *
@@ -69,9 +71,11 @@ public class SimpleRTF2HTMLConverter implements RTF2HTMLConverter {
 	 *
 	 * @param text
 	 *            The text to be searched for an HTML section.
+	 * @param token
+	 *            The token to be checked or null.
 	 * @return The HTML section only but still with RTF code inside.
 	 */
-	private String fetchHtmlSection(String text) {
+	private String fetchHtmlSection(String text, CancellationToken token) {
 		String html = null;
 		int htmlStart = -1;
 		int htmlEnd = -1;
@@ -96,33 +100,56 @@ public class SimpleRTF2HTMLConverter implements RTF2HTMLConverter {
 			// embed code within html tags
 			html = "<html><body style=\"font-family:'Courier',monospace;font-size:10pt;\">" + text + "</body></html>";
 			// replace linebreaks with html breaks
-			html = html.replaceAll("[\\n\\r]+", " <br/> ");
+			html = replaceAll(html, "[\\n\\r]+", " <br/> ", token);
 			// create hyperlinks
-			html = html.replaceAll("(http://\\S+)", "<a href=\"$1\">$1</a>");
-			html = html.replaceAll("mailto:(\\S+@\\S+)", "<a href=\"mailto:$1\">$1</a>");
+			html = replaceAll(html, "(http://\\S+)", "<a href=\"$1\">$1</a>", token);
+			html = replaceAll(html, "mailto:(\\S+@\\S+)", "<a href=\"mailto:$1\">$1</a>", token);
 		}
 
 		return html;
 	}
 
+	/**
+	 * Same as {@link String#replaceAll(String, String)}, but the matching is
+	 * stopped once the given token is cancelled.
+	 *
+	 * @param text
+	 *            The text to be processed.
+	 * @param regex
+	 *            The regular expression to be matched.
+	 * @param replacement
+	 *            The replacement of each match.
+	 * @param token
+	 *            The token to be checked or null.
+	 * @return The text with all matches replaced.
+	 */
+	private static String replaceAll(String text, String regex, String replacement, CancellationToken token) {
+		if (token == null) {
+			return text.replaceAll(regex, replacement);
+		}
+		return Pattern.compile(regex).matcher(token.guard(text)).replaceAll(replacement);
+	}
+
 	/**
 	 * Replaces sequences that denote hex codes for strings using Windows CP1252
 	 * encoding.
 	 *
 	 * @param text
 	 *            The text to be searched.
+	 * @param token
+	 *            The token to be checked or null.
 	 * @return The text with replaced special characters.
 	 */
-	private String replaceHexSequences(String text) {
+	private String replaceHexSequences(String text, CancellationToken token) {
 		final Pattern p = Pattern.compile("\\\\'(..)");
-		final Matcher m = p.matcher(text);
+		final Matcher m = p.matcher(token != null ? token.guard(text) : text);
 
 		while (m.find()) {
 			for (int g = 1; g <= m.groupCount(); g++) {
 				final String hex = m.group(g);
 				final String hexToString = hexToString(hex, "CP1252");
 				if (hexToString != null) {
-					text = text.replaceAll("\\\\'" + hex, hexToString);
+					text = replaceAll(text, "\\\\'" + hex, hexToString, token);
 				}
 			}
 		}
@@ -136,11 +163,13 @@ public class SimpleRTF2HTMLConverter implements RTF2HTMLConverter {
 	 *
 	 * @param text
 	 *            The text to be processed.
+	 * @param token
+	 *            The token to be checked or null.
 	 * @return The text with removed newlines.
 	 */
-	private String replaceLineBreaks(String text) {
-		text = text.replaceAll("( <br/> ( <br/> )+)", " <br/> ");
-		text = text.replaceAll("[\\n\\r]+", "");
+	private String replaceLineBreaks(String text, CancellationToken token) {
+		text = replaceAll(text, "( <br/> ( <br/> )+)", " <br/> ", token);
+		text = replaceAll(text, "[\\n\\r]+", "", token);
 		return text;
 	}
 
@@ -150,17 +179,19 @@ public class SimpleRTF2HTMLConverter implements RTF2HTMLConverter {
 	 *
 	 * @param text
 	 *            The text to be processed.
+	 * @param token
+	 *            The token to be checked or null.
 	 * @return The text with all control sequences replaced.
 	 */
-	private String replaceRemainingControlSequences(String text) {
+	private String replaceRemainingControlSequences(String text, CancellationToken token) {
 		// filtering \par sequences
-		text = text.replaceAll("\\\\pard*", "\n");
+		text = replaceAll(text, "\\\\pard*", "\n", token);
 		// filtering \tab sequences
-		text = text.replaceAll("\\\\tab", "\t");
+		text = replaceAll(text, "\\\\tab", "\t", token);
 		// filtering \*\<rtfsequence> like e.g.: \*\fldinst
-		text = text.replaceAll("\\\\\\*\\\\\\S+", "");
+		text = replaceAll(text, "\\\\\\*\\\\\\S+", "", token);
 		// filtering \<rtfsequence> like e.g.: \htmlrtf
-		text = text.replaceAll("\\\\\\S+", "");
+		text = replaceAll(text, "\\\\\\S+", "", token);
 		return text;
 	}
 
@@ -169,48 +200,55 @@ public class SimpleRTF2HTMLConverter implements RTF2HTMLConverter {
 	 *
 	 * @param text
 	 *            The text to be processed.
+	 * @param token
+	 *            The token to be checked or null.
 	 * @return The text with all control sequences replaced.
 	 */
-	private String replaceSpecialSequences(String text) {
+	private String replaceSpecialSequences(String text, CancellationToken token) {
 
 		// filtering whatever color control sequence, e.g. {\sp{\sn
 		// fillColor}{\sv 14935011}}{\sp{\sn fFilled}{\sv 1}}
-		text = text.replaceAll("\\{\\\\S+ [^\\s\\\\}]*\\}", "");
+		text = replaceAll(text, "\\{\\\\S+ [^\\s\\\\}]*\\}", "", token);
 		// filtering hyperlink sequences like {HYPERLINK
 		// "http://xyz.com/print.jpg"}
-		text = text.replaceAll("\\{HYPERLINK[^\\}]*\\}", "");
+		text = replaceAll(text, "\\{HYPERLINK[^\\}]*\\}", "", token);
 		// filtering plain text sequences like {\pntext *\tab}
-		text = text.replaceAll("\\{\\\\pntext[^\\}]*\\}", "");
+		text = replaceAll(text, "\\{\\\\pntext[^\\}]*\\}", "", token);
 		// filtering rtf style headers like {\f0\fswiss\fcharset0 Arial;}
-		text = text.replaceAll("\\{\\\\f\\d+[^\\}]*\\}", "");
+		text = replaceAll(text, "\\{\\\\f\\d+[^\\}]*\\}", "", token);
 		// filtering embedded tags like {\*\htmltag64 <tr>} }
-		text = text.replaceAll("\\{\\\\\\*\\\\htmltag\\d+[^\\}<]+(<.+>)\\}", "$1");
+		text = replaceAll(text, "\\{\\\\\\*\\\\htmltag\\d+[^\\}<]+(<.+>)\\}", "$1", token);
 		// filtering embedded tags like {\*\htmltag84 &#43;}
-		text = text.replaceAll("\\{\\\\\\*\\\\htmltag\\d+[^\\}<]+\\}", "");
+		text = replaceAll(text, "\\{\\\\\\*\\\\htmltag\\d+[^\\}<]+\\}", "", token);
 		// filtering curly braces that are NOT escaped with backslash },
 		// thus marking the end of an RTF sequence
-		text = text.replaceAll("([^\\\\])" + "\\}+", "$1");
-		text = text.replaceAll("([^\\\\])" + "\\{+", "$1");
+		text = replaceAll(text, "([^\\\\])" + "\\}+", "$1", token);
+		text = replaceAll(text, "([^\\\\])" + "\\{+", "$1", token);
 		// filtering curly braces that are escaped with backslash \},
 		// thus representing an actual brace
-		text = text.replaceAll("\\\\\\}", "}");
-		text = text.replaceAll("\\\\\\{", "{");
+		text = replaceAll(text, "\\\\\\}", "}", token);
+		text = replaceAll(text, "\\\\\\{", "{", token);
 
 		return text;
 	}
 
 	@Override
 	public String rtf2html(String rtf) throws Exception {
+		return this.rtf2html(rtf, null);
+	}
+
+	@Override
+	public String rtf2html(String rtf, CancellationToken token) throws Exception {
 
 		String plain = null;
 
 		if (rtf != null) {
 			plain = rtf;
-			plain = this.fetchHtmlSection(plain);
-			plain = this.replaceHexSequences(plain);
-			plain = this.replaceSpecialSequences(plain);
-			plain = this.replaceRemainingControlSequences(plain);
-			plain = this.replaceLineBreaks(plain);
+			plain = this.fetchHtmlSection(plain, token);
+			plain = this.replaceHexSequences(plain, token);
+			plain = this.replaceSpecialSequences(plain, token);
+			plain = this.replaceRemainingControlSequences(plain, token);
+			plain = this.replaceLineBreaks(plain, token);
 		}
 
 		return plain;
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.nineunderground.main.Main;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+import org.nineunderground.parser.attachment.Attachment;
+import org.nineunderground.parser.attachment.FileAttachment;
+
+/**
+ * @author inaki
+ *
+ */
+public class AttachmentStreamTest {
+
+	/**
+	 * Streams every file attachment of the test file before its data is read
+	 * and compares the bytes with the data of an eagerly parsed message. The
+	 * data of report.pdf is not stored contiguously in the file.
+	 */
+	private void assertStreamsMatch(MsgParser parser, boolean fromBuffer) throws IOException {
+		final List<FileAttachment> expected = getFileAttachments(new MsgParser().parseMsg(ATTACHMENT_MSG_FILE));
+		final Message msg = fromBuffer
+				? parser.parseMsg(ByteBuffer.wrap(Files.readAllBytes(ATTACHMENT_MSG_FILE.toPath())))
+				: parser.parseMsg(ATTACHMENT_MSG_FILE);
+		try {
+			final List<FileAttachment> attachments = getFileAttachments(msg);
+			assertEquals(2, attachments.size());
+			for (int i = 0; i < attachments.size(); i++) {
+				final FileAttachment attachment = attachments.get(i);
+				final byte[] data = expected.get(i).getData();
+				assertArrayEquals(data, read(attachment.openStream()));
+
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				assertEquals(data.length, attachment.transferTo(Channels.newChannel(out)));
+				assertArrayEquals(data, out.toByteArray());
+
+				assertArrayEquals(data, attachment.getData());
+				assertArrayEquals(data, read(attachment.openStream()));
+			}
+		} finally {
+			msg.close();
+		}
+	}
+
+	private List<FileAttachment> getFileAttachments(Message msg) {
+		final List<FileAttachment> attachments = new ArrayList<>();
+		for (final Attachment attachment : msg.getAttachments()) {
+			if (attachment instanceof FileAttachment) {
+				attachments.add((FileAttachment) attachment);
+			}
+		}
+		return attachments;
+	}
+
+	private byte[] read(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[1000];
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testBufferStreams() throws IOException {
+		assertStreamsMatch(new MsgParser(), true);
+	}
+
+	@Test
+	public void testEagerStreams() throws IOException {
+		assertStreamsMatch(new MsgParser(), false);
+	}
+
+	@Test
+	public void testLazyStreams() throws IOException {
+		final MsgParser parser = new MsgParser();
+		parser.setLazy(true);
+		assertStreamsMatch(parser, false);
+		assertStreamsMatch(parser, true);
+	}
+
+	@Test
+	public void testMainExtractsAttachments() throws IOException {
+		final List<FileAttachment> expected = getFileAttachments(new MsgParser().parseMsg(ATTACHMENT_MSG_FILE));
+		try {
+			final List<String> output = Main.parseMsgFile(ATTACHMENT_MSG_FILE.getPath());
+			assertEquals("ENDS", output.get(output.size() - 1));
+			for (final FileAttachment attachment : expected) {
+				assertArrayEquals(attachment.getData(),
+						Files.readAllBytes(new File(attachment.getFilename()).toPath()));
+			}
+		} finally {
+			for (final FileAttachment attachment : expected) {
+				Files.deleteIfExists(new File(attachment.getFilename()).toPath());
+			}
+		}
+	}
+
+	@Test
+	public void testSpilledStreams() throws IOException {
+		final MsgParser parser = new MsgParser();
+		parser.setSpillThreshold(500);
+		assertStreamsMatch(parser, false);
+	}
+
+}
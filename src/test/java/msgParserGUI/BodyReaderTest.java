@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static msgParserGUI.TestFiles.getAttachedMessage;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.junit.Test;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+
+/**
+ * @author inaki
+ *
+ */
+public class BodyReaderTest {
+
+	private void assertReadersMatch(MsgParser parser) throws IOException {
+		final Message expected = new MsgParser().parseMsg(ATTACHMENT_MSG_FILE);
+		final Message msg = parser.parseMsg(ATTACHMENT_MSG_FILE);
+		try {
+			// the readers are opened before the getters have read the bodies
+			assertEquals(expected.getBodyText(), read(msg.openBodyTextReader()));
+			assertEquals(expected.getBodyHTML(), read(msg.openBodyHtmlReader()));
+			final Message attached = getAttachedMessage(msg);
+			assertEquals(getAttachedMessage(expected).getBodyText(), read(attached.openBodyTextReader()));
+			assertEquals(getAttachedMessage(expected).getBodyHTML(), read(attached.openBodyHtmlReader()));
+			// and return the same once they have
+			assertEquals(expected.getBodyText(), msg.getBodyText());
+			assertEquals(expected.getBodyText(), read(msg.openBodyTextReader()));
+		} finally {
+			msg.close();
+		}
+	}
+
+	private String read(Reader reader) throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		final char[] buffer = new char[1024];
+		try {
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				sb.append(buffer, 0, read);
+			}
+		} finally {
+			reader.close();
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testEagerReaders() throws IOException {
+		assertReadersMatch(new MsgParser());
+	}
+
+	@Test
+	public void testLazyReaders() throws IOException {
+		final MsgParser parser = new MsgParser();
+		parser.setLazy(true);
+		assertReadersMatch(parser);
+	}
+
+	@Test
+	public void testSpilledReaders() throws IOException {
+		final MsgParser parser = new MsgParser();
+		parser.setSpillThreshold(500);
+		assertReadersMatch(parser);
+	}
+
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.nineunderground.parser.cfb.BufferPool;
+
+/**
+ * @author inaki
+ *
+ */
+public class BufferPoolTest {
+
+	@Before
+	@After
+	public void clearPool() {
+		BufferPool.clear();
+	}
+
+	@Test
+	public void testByteCap() {
+		// the pool keeps at most 2 MB per thread
+		final ByteBuffer first = BufferPool.acquire(1024 * 1024);
+		final ByteBuffer second = BufferPool.acquire(1024 * 1024);
+		final ByteBuffer third = BufferPool.acquire(1024 * 1024);
+		BufferPool.release(first);
+		BufferPool.release(second);
+		BufferPool.release(third);
+		final List<ByteBuffer> acquired = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			acquired.add(BufferPool.acquire(1024 * 1024));
+		}
+		assertSame(second, acquired.get(0));
+		assertSame(first, acquired.get(1));
+		assertNotSame(third, acquired.get(2));
+	}
+
+	@Test
+	public void testClear() {
+		final ByteBuffer buffer = BufferPool.acquire(100);
+		BufferPool.release(buffer);
+		BufferPool.clear();
+		assertNotSame(buffer, BufferPool.acquire(100));
+	}
+
+	@Test
+	public void testCountCap() {
+		// the pool keeps at most 8 buffers per thread
+		final List<ByteBuffer> buffers = new ArrayList<>();
+		for (int i = 0; i < 9; i++) {
+			buffers.add(BufferPool.acquire(100));
+		}
+		for (final ByteBuffer buffer : buffers) {
+			BufferPool.release(buffer);
+		}
+		for (int i = 7; i >= 0; i--) {
+			assertSame(buffers.get(i), BufferPool.acquire(100));
+		}
+		assertNotSame(buffers.get(8), BufferPool.acquire(100));
+	}
+
+	@Test
+	public void testLargeBuffers() {
+		// buffers above 1 MB have the requested size and are not kept
+		final ByteBuffer buffer = BufferPool.acquire(1024 * 1024 + 1);
+		assertEquals(1024 * 1024 + 1, buffer.capacity());
+		BufferPool.release(buffer);
+		assertNotSame(buffer, BufferPool.acquire(1024 * 1024 + 1));
+	}
+
+	@Test
+	public void testReleaseIgnoresDirectAndReadOnlyBuffers() {
+		final ByteBuffer direct = ByteBuffer.allocateDirect(4096);
+		final ByteBuffer readOnly = ByteBuffer.allocate(4096).asReadOnlyBuffer();
+		BufferPool.release(direct);
+		BufferPool.release(readOnly);
+		BufferPool.release(null);
+		final ByteBuffer buffer = BufferPool.acquire(4096);
+		assertNotSame(direct, buffer);
+		assertNotSame(readOnly, buffer);
+		assertFalse(buffer.isDirect());
+		assertFalse(buffer.isReadOnly());
+	}
+
+	@Test
+	public void testReuse() {
+		final ByteBuffer buffer = BufferPool.acquire(10000);
+		buffer.put((byte) 1).order(ByteOrder.BIG_ENDIAN);
+		BufferPool.release(buffer);
+
+		// a released buffer is handed out again, reset, for smaller requests
+		final ByteBuffer reused = BufferPool.acquire(5000);
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(5000, reused.limit());
+		assertEquals(ByteOrder.LITTLE_ENDIAN, reused.order());
+
+		// but not for larger ones
+		BufferPool.release(reused);
+		final ByteBuffer larger = BufferPool.acquire(20000);
+		assertNotSame(buffer, larger);
+		assertSame(buffer, BufferPool.acquire(10000));
+	}
+
+	@Test
+	public void testSizeRounding() {
+		assertEquals(4096, BufferPool.acquire(1).capacity());
+		assertEquals(4096, BufferPool.acquire(4096).capacity());
+		assertEquals(8192, BufferPool.acquire(4097).capacity());
+		assertEquals(65536, BufferPool.acquire(40000).capacity());
+		assertEquals(1024 * 1024, BufferPool.acquire(1024 * 1024).capacity());
+		final ByteBuffer buffer = BufferPool.acquire(40000);
+		assertEquals(0, buffer.position());
+		assertEquals(40000, buffer.limit());
+		assertEquals(0, buffer.arrayOffset());
+	}
+
+}
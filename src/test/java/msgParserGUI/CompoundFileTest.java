@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.junit.Test;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+import org.nineunderground.parser.cfb.CompoundFile;
+import org.nineunderground.parser.cfb.CompoundFileReader;
+import org.nineunderground.parser.cfb.PoiCompoundFile;
+
+/**
+ * @author inaki
+ *
+ */
+public class CompoundFileTest {
+
+	private static final File MSG_FILE = new File("src/test/resources/test_file.msg");
+
+	private void assertSameEntries(CompoundFile expected, CompoundFile actual, int expectedEntry, int actualEntry)
+			throws IOException {
+		assertEquals(expected.getName(expectedEntry), actual.getName(actualEntry));
+		assertEquals(expected.isStorage(expectedEntry), actual.isStorage(actualEntry));
+		if (expected.isStream(expectedEntry)) {
+			assertEquals(expected.getSize(expectedEntry), actual.getSize(actualEntry));
+			assertEquals(expected.getStreamBuffer(expectedEntry), actual.getStreamBuffer(actualEntry));
+		} else {
+			assertEquals(expected.getChildCount(expectedEntry), actual.getChildCount(actualEntry));
+			for (int i = 0; i < expected.getChildCount(expectedEntry); i++) {
+				assertSameEntries(expected, actual, expected.getChild(expectedEntry, i),
+						actual.getChild(actualEntry, i));
+			}
+		}
+	}
+
+	private int getChild(CompoundFile cf, int storage, String name) {
+		for (int i = 0; i < cf.getChildCount(storage); i++) {
+			if (cf.getName(cf.getChild(storage, i)).equals(name)) {
+				return cf.getChild(storage, i);
+			}
+		}
+		return -1;
+	}
+
+	@Test
+	public void testFragmentedStream() throws IOException {
+		try (CompoundFile reader = CompoundFileReader.open(ATTACHMENT_MSG_FILE)) {
+			// the data of report.pdf is not stored contiguously, so it is
+			// streamed sector by sector
+			final int attachment = getChild(reader, CompoundFile.ROOT, "__attach_version1.0_#00000000");
+			final int data = getChild(reader, attachment, "__substg1.0_37010102");
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try (InputStream in = reader.openStream(data)) {
+				final byte[] buffer = new byte[700];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			}
+			assertEquals(20000, out.size());
+			assertArrayEquals(reader.getStreamBytes(data), out.toByteArray());
+		}
+	}
+
+	@Test
+	public void testReaderMatchesPoi() throws IOException {
+		try (CompoundFile poi = new PoiCompoundFile(new POIFSFileSystem(MSG_FILE, true));
+				CompoundFile reader = CompoundFileReader.open(MSG_FILE)) {
+			assertSameEntries(poi, reader, CompoundFile.ROOT, CompoundFile.ROOT);
+		}
+	}
+
+	@Test
+	public void testParserMatchesPoi() throws IOException {
+		final MsgParser parser = new MsgParser();
+		final Message msg = parser.parseMsg(MSG_FILE);
+		parser.setUsePoi(true);
+		final Message poiMsg = parser.parseMsg(MSG_FILE);
+		assertEquals(poiMsg.toString(), msg.toString());
+		assertEquals(poiMsg.getBodyText(), msg.getBodyText());
+		assertEquals(poiMsg.getAttachments().size(), msg.getAttachments().size());
+	}
+
+}
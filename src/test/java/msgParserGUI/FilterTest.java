@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.nineunderground.parser.EnvelopeFilter;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+import org.nineunderground.parser.attachment.Attachment;
+import org.nineunderground.parser.attachment.AttachmentFilter;
+import org.nineunderground.parser.attachment.FileAttachment;
+import org.nineunderground.parser.attachment.MsgAttachment;
+
+/**
+ * @author inaki
+ *
+ */
+public class FilterTest {
+
+	@Test
+	public void testAttachmentFilter() throws IOException {
+		final MsgParser parser = new MsgParser();
+		parser.setAttachmentFilter(new AttachmentFilter().extensions("pdf").sizeRange(1, 100000));
+		final Message msg = parser.parseMsg(ATTACHMENT_MSG_FILE);
+		// rejected attachments keep their metadata, but not their data
+		assertEquals(3, msg.getAttachments().size());
+		for (final Attachment attachment : msg.getAttachments()) {
+			if (attachment instanceof FileAttachment) {
+				final FileAttachment file = (FileAttachment) attachment;
+				if (file.getLongFilename().equals("report.pdf")) {
+					assertEquals(20000, file.getData().length);
+				} else {
+					assertEquals("photo.jpg", file.getLongFilename());
+					assertEquals(3000, file.getSize());
+					assertNull(file.getData());
+				}
+			} else {
+				assertTrue(attachment instanceof MsgAttachment);
+				assertNotNull(((MsgAttachment) attachment).getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void testEnvelopeFilter() throws IOException {
+		final MsgParser parser = new MsgParser();
+		parser.setFilter(new EnvelopeFilter().messageClass("IPM").senderDomain("example.com")
+				.subjectContains("SYNTHETIC"));
+		final Message msg = parser.parseMsg(ATTACHMENT_MSG_FILE);
+		assertNotNull(msg);
+		assertEquals(3, msg.getAttachments().size());
+		assertEquals(2, msg.getRecipients().size());
+
+		parser.setFilter(new EnvelopeFilter().senderDomain("example.org"));
+		assertNull(parser.parseMsg(ATTACHMENT_MSG_FILE));
+	}
+
+	@Test
+	public void testFilterSeesEnvelopeOnly() throws IOException {
+		final List<Message> tested = new ArrayList<>();
+		final MsgParser parser = new MsgParser();
+		parser.setFilter(msg -> {
+			tested.add(msg);
+			return false;
+		});
+		assertNull(parser.parseMsg(ATTACHMENT_MSG_FILE));
+		assertEquals(1, tested.size());
+		// the filter is applied before recipients and attachments are read
+		final Message envelope = tested.get(0);
+		assertEquals("Synthetic \u00fcnic\u00f6de subject", envelope.getSubject());
+		assertEquals("alice@example.com", envelope.getFromEmail());
+		assertTrue(envelope.getAttachments().isEmpty());
+		assertTrue(envelope.getRecipients().isEmpty());
+	}
+
+}
@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static msgParserGUI.TestFiles.getMsgAttachment;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+import org.nineunderground.parser.attachment.Attachment;
+import org.nineunderground.parser.attachment.FileAttachment;
+import org.nineunderground.parser.attachment.MsgAttachment;
+
+/**
+ * @author inaki
+ *
+ */
+public class LazyParsingTest {
+
+	private void assertSameContent(Message expected, Message msg) {
+		assertEquals(expected.getSubject(), msg.getSubject());
+		assertEquals(expected.getBodyText(), msg.getBodyText());
+		assertEquals(expected.getBodyHTML(), msg.getBodyHTML());
+		assertEquals(expected.getAttachments().size(), msg.getAttachments().size());
+		for (int i = 0; i < msg.getAttachments().size(); i++) {
+			final Attachment attachment = msg.getAttachments().get(i);
+			if (attachment instanceof FileAttachment) {
+				assertArrayEquals(((FileAttachment) expected.getAttachments().get(i)).getData(),
+						((FileAttachment) attachment).getData());
+			} else {
+				assertSameContent(((MsgAttachment) expected.getAttachments().get(i)).getMessage(),
+						((MsgAttachment) attachment).getMessage());
+			}
+		}
+	}
+
+	@Test
+	public void testDetach() throws IOException {
+		final Message expected = new MsgParser().parseMsg(ATTACHMENT_MSG_FILE);
+		final MsgParser parser = new MsgParser();
+		parser.setLazy(true);
+		final Message msg = parser.parseMsg(ATTACHMENT_MSG_FILE);
+		msg.detach();
+		assertTrue(getMsgAttachment(msg).isLoaded());
+		// all values have been read before the file was closed
+		assertSameContent(expected, msg);
+		msg.close();
+	}
+
+	@Test
+	public void testLazyParsing() throws IOException {
+		final Message expected = new MsgParser().parseMsg(ATTACHMENT_MSG_FILE);
+		final MsgParser parser = new MsgParser();
+		parser.setLazy(true);
+		final Message msg = parser.parseMsg(ATTACHMENT_MSG_FILE);
+		try {
+			assertEquals(expected.getSubject(), msg.getSubject());
+			// attached messages are parsed on first access
+			final MsgAttachment attachment = getMsgAttachment(msg);
+			assertFalse(attachment.isLoaded());
+			assertEquals("Embedded subject", attachment.getMessage().getSubject());
+			assertTrue(attachment.isLoaded());
+			assertSameContent(expected, msg);
+		} finally {
+			msg.close();
+		}
+	}
+
+}
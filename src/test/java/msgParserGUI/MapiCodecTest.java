@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.poi.poifs.filesystem.DirectoryEntry;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.junit.Test;
+import org.nineunderground.parser.MapiCodec;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+
+/**
+ * @author inaki
+ *
+ */
+public class MapiCodecTest {
+
+	private static final UUID GUID = UUID.fromString("00062008-0000-0000-c000-000000000046");
+
+	private ByteBuffer allocate(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void document(DirectoryEntry root, String name, byte[] content) throws IOException {
+		root.createDocument("__substg1.0_" + name, new ByteArrayInputStream(content));
+	}
+
+	/**
+	 * Writes a message holding one multi-valued property of every type,
+	 * starting at 0x8001.
+	 */
+	private Message parseMultiValued() throws IOException {
+		try (POIFSFileSystem fs = new POIFSFileSystem()) {
+			final DirectoryEntry root = fs.getRoot();
+			// the values of fixed size types are stored in a single stream
+			document(root, "80011002", allocate(4).putShort((short) 1).putShort((short) -2).array());
+			document(root, "80021003", allocate(8).putInt(3).putInt(-4).array());
+			document(root, "80031004", allocate(8).putFloat(0.5f).putFloat(-1.5f).array());
+			document(root, "80041005", allocate(16).putDouble(0.25).putDouble(-2.5).array());
+			document(root, "80051007", allocate(8).putDouble(43647.5).array());
+			document(root, "80061006", allocate(8).putLong(123450000L).array());
+			document(root, "80071014", allocate(16).putLong(5L).putLong(-6L).array());
+			document(root, "80081040", allocate(16).putLong(0L).putLong(132064488000000000L).array());
+			final ByteBuffer guid = allocate(16);
+			guid.putInt((int) (GUID.getMostSignificantBits() >>> 32))
+					.putShort((short) (GUID.getMostSignificantBits() >>> 16))
+					.putShort((short) GUID.getMostSignificantBits()).order(ByteOrder.BIG_ENDIAN)
+					.putLong(GUID.getLeastSignificantBits());
+			document(root, "80091048", guid.array());
+			// variable length values are stored in a stream each, listed
+			// in a length stream
+			document(root, "800A101E", allocate(8).putInt(4).putInt(2).array());
+			document(root, "800A101E-00000000", "one\0".getBytes(StandardCharsets.ISO_8859_1));
+			document(root, "800A101E-00000001", "2\0".getBytes(StandardCharsets.ISO_8859_1));
+			document(root, "800B101F", allocate(8).putInt(8).putInt(6).array());
+			document(root, "800B101F-00000000", "red\0".getBytes(StandardCharsets.UTF_16LE));
+			document(root, "800B101F-00000001", "ab\0".getBytes(StandardCharsets.UTF_16LE));
+			document(root, "800C1102", allocate(16).putInt(3).putInt(0).putInt(1).putInt(0).array());
+			document(root, "800C1102-00000000", new byte[] { 1, 2, 3 });
+			document(root, "800C1102-00000001", new byte[] { 4 });
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			fs.writeFilesystem(out);
+			return new MsgParser().parseMsg(ByteBuffer.wrap(out.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testFiletimes() throws IOException {
+		assertEquals(Instant.parse("1601-01-01T00:00:00Z"), MapiCodec.toInstant(0));
+		assertEquals(Instant.parse("1970-01-01T00:00:00Z"), MapiCodec.toInstant(116444736000000000L));
+		// the full precision of 100 nanoseconds is kept
+		assertEquals(Instant.parse("1970-01-01T00:00:00.0000001Z"), MapiCodec.toInstant(116444736000000001L));
+		assertEquals(Instant.parse("+30828-09-14T02:48:05.4775807Z"), MapiCodec.toInstant(Long.MAX_VALUE));
+
+		// PT_SYSTIME properties are decoded as instants
+		final Message msg = new MsgParser().parseMsg(ATTACHMENT_MSG_FILE);
+		assertEquals(Instant.parse("2019-07-01T10:00:00Z"), msg.getPropertyValue(0x39));
+		assertEquals(Date.from(Instant.parse("2019-07-01T10:00:00Z")), msg.getClientSubmitTime());
+	}
+
+	@Test
+	public void testMultiValuedTypes() throws IOException {
+		final Message msg = parseMultiValued();
+		assertEquals(Arrays.asList((short) 1, (short) -2), msg.getPropertyValues(0x8001));
+		assertArrayEquals(new short[] { 1, -2 }, (short[]) msg.getPropertyValue(0x8001));
+		assertEquals(Arrays.asList(3, -4), msg.getPropertyValues(0x8002));
+		assertEquals(Arrays.asList(0.5f, -1.5f), msg.getPropertyValues(0x8003));
+		assertEquals(Arrays.asList(0.25, -2.5), msg.getPropertyValues(0x8004));
+		// PT_MV_APPTIME
+		assertEquals(Arrays.asList(43647.5), msg.getPropertyValues(0x8005));
+		// PT_MV_CURRENCY
+		assertEquals(Arrays.asList(123450000L), msg.getPropertyValues(0x8006));
+		assertEquals(Arrays.asList(5L, -6L), msg.getPropertyValues(0x8007));
+		assertEquals(Arrays.asList(Instant.parse("1601-01-01T00:00:00Z"), Instant.parse("2019-07-01T10:00:00Z")),
+				msg.getPropertyValues(0x8008));
+		assertEquals(Arrays.asList(GUID), msg.getPropertyValues(0x8009));
+		assertEquals(Arrays.asList("one", "2"), msg.getPropertyValues(0x800a));
+		assertEquals(Arrays.asList("red", "ab"), msg.getPropertyValues(0x800b));
+
+		// binary values are copied into byte arrays
+		final List<Object> binaries = msg.getPropertyValues(0x800c);
+		assertEquals(2, binaries.size());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) binaries.get(0));
+		assertArrayEquals(new byte[] { 4 }, (byte[]) binaries.get(1));
+	}
+
+}
@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static msgParserGUI.TestFiles.RTF_MSG_FILE;
+import static msgParserGUI.TestFiles.getAttachedMessage;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.nineunderground.parser.CancellationToken;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+import org.nineunderground.parser.ParseBudget;
+import org.nineunderground.parser.ParseOptions;
+import org.nineunderground.parser.attachment.FileAttachment;
+import org.nineunderground.parser.cfb.CompoundFile;
+import org.nineunderground.parser.cfb.CompoundFileReader;
+
+/**
+ * @author inaki
+ *
+ */
+public class ParseLimitsTest {
+
+	private int getChild(CompoundFile cf, int storage, String name) {
+		for (int i = 0; i < cf.getChildCount(storage); i++) {
+			if (cf.getName(cf.getChild(storage, i)).equals(name)) {
+				return cf.getChild(storage, i);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Sums the sizes of the streams below a storage and its substorages.
+	 *
+	 * @param properties
+	 *            Whether only the properties streams of the messages are
+	 *            summed.
+	 */
+	private long getStreamSizes(CompoundFile cf, int storage, boolean properties) {
+		long size = 0;
+		for (int i = 0; i < cf.getChildCount(storage); i++) {
+			final int entry = cf.getChild(storage, i);
+			if (cf.isStorage(entry)) {
+				size += getStreamSizes(cf, entry, properties);
+			} else if (!properties || cf.getName(entry).equals("__properties_version1.0")
+					&& (storage == CompoundFile.ROOT || cf.getName(storage).equals("__substg1.0_3701000D"))) {
+				size += cf.getSize(entry);
+			}
+		}
+		return size;
+	}
+
+	private Message parse(ParseBudget budget) throws IOException {
+		final MsgParser parser = new MsgParser();
+		parser.setParseBudget(budget);
+		return parser.parseMsg(ATTACHMENT_MSG_FILE);
+	}
+
+	@Test
+	public void testCancellation() throws IOException {
+		final CancellationToken token = new CancellationToken();
+		token.cancel();
+		final MsgParser parser = new MsgParser();
+		try {
+			parser.parseMsg(ATTACHMENT_MSG_FILE, token);
+			fail("Parsing should have been cancelled");
+		} catch (final CancellationException e) {
+			// expected
+		}
+		// the token is not kept by the parser
+		assertNotNull(parser.parseMsg(ATTACHMENT_MSG_FILE));
+
+		// the RTF body is only converted on first access
+		final Message msg = new MsgParser().parseMsg(RTF_MSG_FILE);
+		try {
+			msg.getConvertedBodyHTML(token);
+			fail("The conversion should have been cancelled");
+		} catch (final CancellationException e) {
+			// expected
+		}
+		assertNotNull(msg.getConvertedBodyHTML());
+	}
+
+	@Test
+	public void testCancellationAfterParsing() throws IOException, InterruptedException {
+		final MsgParser parser = new MsgParser();
+		parser.setLazy(true);
+		final Message msg = parser.parseMsg(ATTACHMENT_MSG_FILE, CancellationToken.withTimeout(1, TimeUnit.SECONDS));
+		try {
+			Thread.sleep(1100);
+			// the token only applies while parseMsg is running
+			assertEquals("Embedded subject", getAttachedMessage(msg).getSubject());
+			assertNotNull(msg.getBodyText());
+		} finally {
+			msg.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentCancellation() throws Exception {
+		final MsgParser parser = new MsgParser();
+		final CountDownLatch otherParsed = new CountDownLatch(1);
+		// the token waits at its first check until another call on the same
+		// parser has finished, and is cancelled only then
+		final CancellationToken token = new CancellationToken() {
+			@Override
+			public void throwIfCancelled() throws CancellationException {
+				try {
+					otherParsed.await();
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				cancel();
+				super.throwIfCancelled();
+			}
+		};
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<Message> cancelled = executor.submit(() -> parser.parseMsg(ATTACHMENT_MSG_FILE, token));
+			assertNotNull(parser.parseMsg(ATTACHMENT_MSG_FILE));
+			otherParsed.countDown();
+			try {
+				cancelled.get();
+				fail("Parsing should have been cancelled");
+			} catch (final ExecutionException e) {
+				assertTrue(e.getCause() instanceof CancellationException);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testMaxAttachments() throws IOException {
+		final Message msg = parse(new ParseBudget().maxAttachments(2));
+		assertTrue(msg.isTruncated());
+		assertEquals(2, msg.getAttachments().size());
+	}
+
+	@Test
+	public void testMaxBytes() throws IOException {
+		final long bytes;
+		final long metadata;
+		try (CompoundFile cf = CompoundFileReader.open(ATTACHMENT_MSG_FILE)) {
+			// every stream is read once, including those of the named
+			// property mapping, and the properties streams of the messages
+			// twice since their code pages are read first
+			bytes = getStreamSizes(cf, CompoundFile.ROOT, false) + getStreamSizes(cf, CompoundFile.ROOT, true);
+			// the streams read when only the attachments are selected, up to
+			// the data of report.pdf
+			metadata = 2 * cf.getSize(getChild(cf, CompoundFile.ROOT, "__properties_version1.0"))
+					+ getStreamSizes(cf, getChild(cf, CompoundFile.ROOT, "__attach_version1.0_#00000000"), false)
+					- 20000;
+		}
+		assertFalse(parse(new ParseBudget().maxBytes(bytes)).isTruncated());
+		assertTrue(parse(new ParseBudget().maxBytes(bytes - 1)).isTruncated());
+
+		// the data of report.pdf (20000 bytes) only counts if it is read
+		final MsgParser parser = new MsgParser();
+		parser.setParseBudget(new ParseBudget().maxBytes(bytes - 20000));
+		parser.setAttachmentFilter(attachment -> !"report.pdf".equals(attachment.getFilename()));
+		Message msg = parser.parseMsg(ATTACHMENT_MSG_FILE);
+		assertFalse(msg.isTruncated());
+		assertEquals(3, msg.getAttachments().size());
+		parser.setAttachmentFilter(null);
+		assertTrue(parser.parseMsg(ATTACHMENT_MSG_FILE).isTruncated());
+
+		// an attachment whose data does not fit is kept without its data
+		parser.setParseOptions(ParseOptions.of(ParseOptions.ATTACHMENTS));
+		parser.setParseBudget(new ParseBudget().maxBytes(metadata + 19999));
+		msg = parser.parseMsg(ATTACHMENT_MSG_FILE);
+		assertTrue(msg.isTruncated());
+		assertEquals(1, msg.getAttachments().size());
+		assertNull(((FileAttachment) msg.getAttachments().get(0)).getData());
+		parser.setParseBudget(new ParseBudget().maxBytes(metadata + 20000));
+		msg = parser.parseMsg(ATTACHMENT_MSG_FILE);
+		assertEquals(20000, ((FileAttachment) msg.getAttachments().get(0)).getData().length);
+	}
+
+	@Test
+	public void testMaxDepth() throws IOException {
+		// the storages of the attached message are nested one level deeper
+		// than those of the attachment itself
+		final Message msg = parse(new ParseBudget().maxDepth(0));
+		assertTrue(msg.isTruncated());
+		assertEquals(3, msg.getAttachments().size());
+		assertEquals(2, msg.getRecipients().size());
+		assertTrue(getAttachedMessage(msg).getRecipients().isEmpty());
+
+		assertFalse(parse(new ParseBudget().maxDepth(1)).isTruncated());
+	}
+
+	@Test
+	public void testMaxEntries() throws IOException {
+		assertFalse(parse(new ParseBudget()).isTruncated());
+
+		// the file holds 61 entries, the attached message is read last
+		final Message msg = parse(new ParseBudget().maxEntries(60));
+		assertTrue(msg.isTruncated());
+		assertEquals(3, msg.getAttachments().size());
+		final Message attached = getAttachedMessage(msg);
+		assertTrue(attached.isTruncated());
+		// the attached message has been completed nevertheless
+		assertEquals("bob@example.com", attached.getToEmail());
+	}
+
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static msgParserGUI.TestFiles.RTF_MSG_FILE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+import org.nineunderground.parser.NamedProperty;
+import org.nineunderground.parser.ParseOptions;
+import org.nineunderground.parser.attachment.Attachment;
+import org.nineunderground.parser.attachment.FileAttachment;
+import org.nineunderground.parser.attachment.MsgAttachment;
+
+/**
+ * @author inaki
+ *
+ */
+public class ParseOptionsTest {
+
+	private Message parse(File file, ParseOptions options) throws IOException {
+		final MsgParser parser = new MsgParser();
+		parser.setParseOptions(options);
+		return parser.parseMsg(file);
+	}
+
+	@Test
+	public void testAttachments() throws IOException {
+		final Message msg = parse(ATTACHMENT_MSG_FILE, ParseOptions.of(ParseOptions.ATTACHMENTS));
+		assertEquals(3, msg.getAttachments().size());
+		for (final Attachment attachment : msg.getAttachments()) {
+			if (attachment instanceof FileAttachment) {
+				final FileAttachment file = (FileAttachment) attachment;
+				assertEquals(file.getSize(), file.getData().length);
+			}
+		}
+		assertTrue(msg.getRecipients().isEmpty());
+	}
+
+	@Test
+	public void testAttachmentsMeta() throws IOException {
+		final Message msg = parse(ATTACHMENT_MSG_FILE, ParseOptions.of(ParseOptions.ATTACHMENTS_META));
+		assertEquals(3, msg.getAttachments().size());
+		for (final Attachment attachment : msg.getAttachments()) {
+			if (attachment instanceof FileAttachment) {
+				// the size is taken from the directory, the data is not read
+				final FileAttachment file = (FileAttachment) attachment;
+				assertNotNull(file.getLongFilename());
+				assertTrue(file.getSize() > 0);
+				assertNull(file.getData());
+			} else {
+				// attached messages are parsed with the same options
+				final Message attached = ((MsgAttachment) attachment).getMessage();
+				assertNull(attached.getSubject());
+				assertTrue(attached.getRecipients().isEmpty());
+			}
+		}
+		assertNull(msg.getSubject());
+		assertNull(msg.getBodyText());
+		assertTrue(msg.getRecipients().isEmpty());
+	}
+
+	@Test
+	public void testEnvelope() throws IOException {
+		final Message msg = parse(RTF_MSG_FILE, ParseOptions.of(ParseOptions.ENVELOPE));
+		final Message expected = new MsgParser().parseMsg(RTF_MSG_FILE);
+		assertEquals(expected.getSubject(), msg.getSubject());
+		assertEquals(expected.getFromEmail(), msg.getFromEmail());
+		assertEquals(expected.getRecipients().size(), msg.getRecipients().size());
+		assertFalse(msg.getRecipients().isEmpty());
+		// neither the bodies nor the attachments are read
+		assertNotNull(expected.getBodyRTF());
+		assertNull(msg.getBodyRTF());
+		assertNull(msg.getPropertyValue(0x1009));
+		assertNull(msg.getBodyText());
+		assertTrue(msg.getAttachments().isEmpty());
+	}
+
+	@Test
+	public void testIncludeProperties() throws IOException {
+		final Message msg = parse(ATTACHMENT_MSG_FILE,
+				new ParseOptions().include(ParseOptions.BODY_HTML).includeTags(0x1000001f));
+		assertNotNull(msg.getBodyText());
+		assertNotNull(msg.getBodyHTML());
+		assertNull(msg.getSubject());
+		assertTrue(msg.getRecipients().isEmpty());
+		assertTrue(msg.getAttachments().isEmpty());
+	}
+
+	@Test
+	public void testNamedProperties() throws IOException {
+		// the named property mapping is only read if a named property is
+		// selected
+		Message msg = parse(ATTACHMENT_MSG_FILE, ParseOptions.of(ParseOptions.ENVELOPE));
+		assertNull(msg.getNamedProperty(0x8001));
+		assertNull(msg.getPropertyValue(0x8001));
+
+		msg = parse(ATTACHMENT_MSG_FILE, ParseOptions.of(ParseOptions.ENVELOPE).includeProperties(0x8001));
+		assertEquals(new NamedProperty(NamedProperty.PS_PUBLIC_STRINGS, "Keywords"), msg.getNamedProperty(0x8001));
+		assertArrayEquals(new String[] { "red", "blue" }, (String[]) msg.getPropertyValue(0x8001));
+		assertNull(msg.getPropertyValue(0x8002));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownGroup() {
+		ParseOptions.of(ParseOptions.ENVELOPE, "bodies");
+	}
+
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static msgParserGUI.TestFiles.RTF_MSG_FILE;
+import static msgParserGUI.TestFiles.getAttachedMessage;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+import org.nineunderground.parser.NamedProperty;
+import org.nineunderground.parser.RecipientEntry;
+
+/**
+ * @author inaki
+ *
+ */
+public class PropertyDecodingTest {
+
+	private static final UUID PSETID_ADDRESS = UUID.fromString("00062004-0000-0000-c000-000000000046");
+	private static final UUID PSETID_COMMON = UUID.fromString("00062008-0000-0000-c000-000000000046");
+
+	private byte[] toArray(ByteBuffer buffer) {
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void testBinaryProperties() throws IOException {
+		final File file = RTF_MSG_FILE;
+		final Message msg = new MsgParser().parseMsg(ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+		// binary values are handed out as copies, or as buffers on request
+		final byte[] rtf = (byte[]) msg.getPropertyValue(0x1009);
+		assertArrayEquals(rtf, toArray(msg.getPropertyBuffer(0x1009)));
+		assertTrue(msg.getPropertyBuffer(0x1009).isReadOnly());
+		assertEquals(1, msg.getPropertyValues(0x1009).size());
+		assertArrayEquals(rtf, (byte[]) msg.getPropertyValues(0x1009).get(0));
+		assertNull(msg.getPropertyBuffer(0x37));
+
+		final RecipientEntry recipient = msg.getRecipients().get(0);
+		assertArrayEquals((byte[]) recipient.getPropertyValue(0xff9), toArray(recipient.getPropertyBuffer(0xff9)));
+	}
+
+	@Test
+	public void testCodePages() throws IOException {
+		final Message msg = new MsgParser().parseMsg(ATTACHMENT_MSG_FILE);
+		// 8 bit strings are decoded with the code page of the message
+		// (PR_MESSAGE_CODEPAGE)
+		assertEquals(Charset.forName("windows-1251"), msg.getString8Charset());
+		assertEquals("\u041f\u0440\u0438\u0432\u0435\u0442 \u043c\u0438\u0440", msg.getPropertyValue(0x70));
+		// the binary HTML body with the internet code page
+		assertTrue(msg.getBodyHTML().contains("caf\u00e9"));
+
+		final Message attached = getAttachedMessage(msg);
+		assertEquals(Charset.forName("windows-1252"), attached.getString8Charset());
+		assertEquals("Caf\u00e9", attached.getPropertyValue(0x70));
+	}
+
+	@Test
+	public void testMultiValuedProperties() throws IOException {
+		final Message msg = new MsgParser().parseMsg(ATTACHMENT_MSG_FILE);
+		// PT_MV_UNICODE, one stream per value
+		assertEquals(Arrays.asList("red", "blue"), msg.getPropertyValues(0x8001));
+		// PT_MV_LONG, all values in a single stream
+		assertArrayEquals(new int[] { 1, 2, 3 }, (int[]) msg.getPropertyValue(0x8002));
+		assertEquals(Arrays.asList(1, 2, 3), msg.getPropertyValues(0x8002));
+		// single valued properties are returned as a list of one value
+		assertEquals(Arrays.asList("IPM.Note"), msg.getPropertyValues(0x1a));
+	}
+
+	@Test
+	public void testNamedProperties() throws IOException {
+		final Message msg = new MsgParser().parseMsg(ATTACHMENT_MSG_FILE);
+		assertEquals(new NamedProperty(NamedProperty.PS_PUBLIC_STRINGS, "Keywords"), msg.getNamedProperty(0x8001));
+		assertEquals(new NamedProperty(PSETID_COMMON, 0x8085), msg.getNamedProperty(0x8002));
+		assertEquals("named@example.com", msg.getNamedPropertyValue(PSETID_ADDRESS, 0x8083));
+		assertArrayEquals(new String[] { "red", "blue" },
+				(String[]) msg.getNamedPropertyValue(NamedProperty.PS_PUBLIC_STRINGS, "Keywords"));
+		assertNull(msg.getNamedPropertyValue(PSETID_ADDRESS, 0x8084));
+		// attached messages share the mapping of the top level message
+		assertSame(msg.getNamedProperties(), getAttachedMessage(msg).getNamedProperties());
+	}
+
+}
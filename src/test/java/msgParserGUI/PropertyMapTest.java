@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+import org.nineunderground.parser.PropertyMap;
+
+/**
+ * @author inaki
+ *
+ */
+public class PropertyMapTest {
+
+	private PropertyMap createMap(int... keys) {
+		final PropertyMap map = new PropertyMap();
+		for (final int key : keys) {
+			map.put(key, "value " + Integer.toHexString(key));
+		}
+		return map;
+	}
+
+	@Test
+	public void testEntrySet() {
+		final PropertyMap map = createMap(0x3001, 0x37, 0x1000);
+		final List<Entry<Integer, Object>> entries = new ArrayList<>(map.entrySet());
+		assertEquals(Arrays.asList(new SimpleImmutableEntry<>(0x37, (Object) "value 37"),
+				new SimpleImmutableEntry<>(0x1000, (Object) "value 1000"),
+				new SimpleImmutableEntry<>(0x3001, (Object) "value 3001")), entries);
+		assertEquals(3, map.entrySet().size());
+
+		// entries can be removed while iterating
+		final Iterator<Entry<Integer, Object>> it = map.entrySet().iterator();
+		it.next();
+		it.next();
+		it.remove();
+		assertEquals(Arrays.asList(0x37, 0x3001), new ArrayList<>(map.keySet()));
+		assertEquals(0x3001, it.next().getKey().intValue());
+		assertFalse(it.hasNext());
+		try {
+			it.next();
+			fail("The iterator should have been exhausted");
+		} catch (final NoSuchElementException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testOrder() {
+		// the properties are iterated in ascending order of their codes,
+		// whatever order they have been stored in
+		final PropertyMap map = createMap(0x3001, 0x37, 0x8002, 0x1000, 0x1a, 0x8001);
+		assertEquals(Arrays.asList(0x1a, 0x37, 0x1000, 0x3001, 0x8001, 0x8002), new ArrayList<>(map.keySet()));
+		assertEquals(Arrays.asList("value 1a", "value 37", "value 1000", "value 3001", "value 8001", "value 8002"),
+				new ArrayList<>(map.values()));
+		assertEquals(6, map.size());
+		assertTrue(map.containsKey(0x37));
+		assertTrue(map.containsKey(Integer.valueOf(0x37)));
+		assertFalse(map.containsKey(0x38));
+		assertFalse(map.containsKey("0x37"));
+	}
+
+	@Test
+	public void testOverwrite() {
+		final PropertyMap map = createMap(0x37, 0x1000);
+		assertEquals("value 37", map.put(0x37, "subject"));
+		assertEquals("subject", map.get(0x37));
+		assertEquals(2, map.size());
+		assertNull(map.put(0x39, "date"));
+		assertEquals(3, map.size());
+
+		assertEquals("subject", map.remove(0x37));
+		assertNull(map.remove(0x37));
+		assertNull(map.get(0x37));
+		assertEquals(Arrays.asList(0x39, 0x1000), new ArrayList<>(map.keySet()));
+	}
+
+	@Test
+	public void testTrimToSize() {
+		final PropertyMap map = new PropertyMap();
+		for (int key = 100; key > 0; key--) {
+			map.put(key, Integer.valueOf(key));
+		}
+		map.trimToSize();
+		assertEquals(100, map.size());
+		for (int key = 1; key <= 100; key++) {
+			assertEquals(key, map.get(key));
+		}
+
+		// the map grows again after it has been trimmed
+		map.put(0, Integer.valueOf(0));
+		map.put(101, Integer.valueOf(101));
+		assertEquals(102, map.size());
+		assertEquals(0, map.keySet().iterator().next().intValue());
+
+		map.clear();
+		map.trimToSize();
+		assertTrue(map.isEmpty());
+		map.put(0x37, "subject");
+		assertEquals(Collections.singletonMap(0x37, "subject"), map);
+	}
+
+	@Test
+	public void testValues() {
+		final PropertyMap map = new PropertyMap();
+		map.put(0x37, "subject");
+		map.put(0x8001, new String[] { "red", "blue" });
+		map.put(0x8002, new int[] { 1, 2, 3 });
+		map.put(0x1009, new byte[] { 1, 2 });
+		assertEquals(Arrays.asList("subject"), map.getValues(0x37));
+		assertEquals(Arrays.asList("red", "blue"), map.getValues(0x8001));
+		assertEquals(Arrays.asList(1, 2, 3), map.getValues(0x8002));
+		// a byte array is a single binary value
+		assertEquals(1, map.getValues(0x1009).size());
+		assertTrue(map.getValues(0x38).isEmpty());
+	}
+
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import static msgParserGUI.TestFiles.ATTACHMENT_MSG_FILE;
+import static msgParserGUI.TestFiles.RTF_MSG_FILE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import org.junit.Test;
+import org.nineunderground.parser.CancellationToken;
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.MsgParser;
+import org.nineunderground.parser.SpilledValue;
+import org.nineunderground.parser.attachment.Attachment;
+import org.nineunderground.parser.attachment.FileAttachment;
+import org.nineunderground.parser.attachment.MsgAttachment;
+
+/**
+ * @author inaki
+ *
+ */
+public class SpillTest {
+
+	private Path getSpilledFile(Message msg, int code) {
+		final Object value = msg.getPropertyValue(code);
+		assertTrue(value instanceof SpilledValue);
+		return ((SpilledValue) value).getFile();
+	}
+
+	@Test
+	public void testSpilledValues() throws IOException {
+		final Message expected = new MsgParser().parseMsg(ATTACHMENT_MSG_FILE);
+		final MsgParser parser = new MsgParser();
+		parser.setSpillThreshold(500);
+		final Message msg = parser.parseMsg(ATTACHMENT_MSG_FILE);
+
+		final List<Path> files = new ArrayList<>();
+		files.add(getSpilledFile(msg, 0x1000));
+		assertEquals(expected.getBodyText(), msg.getBodyText());
+		assertEquals(expected.getBodyHTML(), msg.getBodyHTML());
+		for (int i = 0; i < msg.getAttachments().size(); i++) {
+			final Attachment attachment = msg.getAttachments().get(i);
+			if (attachment instanceof FileAttachment) {
+				assertArrayEquals(((FileAttachment) expected.getAttachments().get(i)).getData(),
+						((FileAttachment) attachment).getData());
+			} else {
+				final Message attached = ((MsgAttachment) attachment).getMessage();
+				files.add(getSpilledFile(attached, 0x1000));
+				assertEquals(expected.getBodyText(), attached.getBodyText());
+			}
+		}
+		for (final Path file : files) {
+			assertTrue(Files.exists(file));
+		}
+
+		// the temporary files of the message and its attached messages are
+		// deleted together with the message
+		msg.close();
+		for (final Path file : files) {
+			assertFalse(Files.exists(file));
+		}
+	}
+
+	@Test
+	public void testSpilledValuesOfLostMessages() throws IOException {
+		final List<Message> tested = new ArrayList<>();
+		final MsgParser parser = new MsgParser();
+		parser.setSpillThreshold(10);
+		parser.setFilter(msg -> tested.add(msg));
+		// cancels the parsing once the body has been spilled
+		final CancellationToken token = new CancellationToken() {
+
+			@Override
+			public void throwIfCancelled() throws CancellationException {
+				if (!tested.isEmpty() && tested.get(0).getPropertyValue(0x1000) instanceof SpilledValue) {
+					throw new CancellationException();
+				}
+			}
+		};
+		try {
+			parser.parseMsg(ATTACHMENT_MSG_FILE, token);
+			fail("Parsing should have been cancelled");
+		} catch (final CancellationException e) {
+			assertFalse(Files.exists(getSpilledFile(tested.get(0), 0x1000)));
+		}
+	}
+
+	@Test
+	public void testSpilledValueTypes() throws IOException {
+		final MsgParser parser = new MsgParser();
+		parser.setSpillThreshold(10);
+		try (Message msg = parser.parseMsg(RTF_MSG_FILE)) {
+			// binary values and the bodies are spilled, other strings are
+			// kept in memory
+			assertTrue(msg.getPropertyValue(0x1009) instanceof SpilledValue);
+			assertTrue(msg.getPropertyValue(0x1000) instanceof SpilledValue);
+			assertTrue(msg.getPropertyValue(0x1a) instanceof String);
+			assertTrue(msg.getRecipients().get(0).getPropertyValue(0x3001) instanceof String);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import java.io.File;
+
+import org.nineunderground.parser.Message;
+import org.nineunderground.parser.attachment.Attachment;
+import org.nineunderground.parser.attachment.MsgAttachment;
+
+/**
+ * The .msg files the tests are run on and helpers shared by the tests.
+ *
+ * @author inaki
+ */
+public final class TestFiles {
+
+	/**
+	 * A message generated by {@link TestMessageGenerator}, holding:
+	 * <ul>
+	 * <li>the subject "Synthetic \u00fcnic\u00f6de subject" from Alice Sender
+	 * &lt;alice@example.com&gt; to Bob Receiver &lt;bob@example.com&gt; and
+	 * Carol &lt;carol@example.com&gt;</li>
+	 * <li>a plain text body of 400 lines and a binary HTML body in
+	 * windows-1252, but no RTF body</li>
+	 * <li>the message code page 1251 and the conversation topic (0x0070) as an
+	 * 8 bit string in that code page</li>
+	 * <li>the multi-valued properties 0x8001 (strings) and 0x8002 (ints) and
+	 * the named property mapping of 0x8001 to 0x8003</li>
+	 * <li>the file attachments report.pdf (20000 bytes, not stored
+	 * contiguously) and photo.jpg (3000 bytes, in the mini stream)</li>
+	 * <li>the attached message "Embedded subject", which has the same
+	 * properties and recipients, but code page 1252 and no attachments</li>
+	 * </ul>
+	 * The file has 61 directory entries below the root.
+	 */
+	public static final File ATTACHMENT_MSG_FILE = new File("src/test/resources/attachment_test_file.msg");
+	/**
+	 * The message {@link SimpleTest} is run on, which has an RTF body.
+	 */
+	public static final File RTF_MSG_FILE = new File("src/test/resources/test_file.msg");
+
+	private TestFiles() {
+	}
+
+	/**
+	 * @param msg
+	 *            A parsed message.
+	 * @return The first message attached to the given message or null.
+	 */
+	public static Message getAttachedMessage(Message msg) {
+		final MsgAttachment attachment = getMsgAttachment(msg);
+		return attachment != null ? attachment.getMessage() : null;
+	}
+
+	/**
+	 * @param msg
+	 *            A parsed message.
+	 * @return The first attachment of the given message that holds a message
+	 *         or null.
+	 */
+	public static MsgAttachment getMsgAttachment(Message msg) {
+		for (final Attachment attachment : msg.getAttachments()) {
+			if (attachment instanceof MsgAttachment) {
+				return (MsgAttachment) attachment;
+			}
+		}
+		return null;
+	}
+}
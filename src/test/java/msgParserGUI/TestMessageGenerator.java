@@ -0,0 +1,269 @@
+/*******************************************************************************
+ * Copyright (C) 2018 inaki
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package msgParserGUI;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.apache.poi.poifs.filesystem.DirectoryEntry;
+import org.apache.poi.poifs.filesystem.Entry;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+
+/**
+ * Generates src/test/resources/attachment_test_file.msg (see
+ * {@link TestFiles#ATTACHMENT_MSG_FILE}) with POI. The output does not
+ * depend on the time or the platform, so running
+ *
+ * <pre>
+ * java msgParserGUI.TestMessageGenerator src/test/resources/attachment_test_file.msg
+ * </pre>
+ *
+ * reproduces the file byte by byte.
+ *
+ * @author inaki
+ */
+public class TestMessageGenerator {
+
+	private static final UUID PSETID_ADDRESS = UUID.fromString("00062004-0000-0000-c000-000000000046");
+	private static final UUID PSETID_COMMON = UUID.fromString("00062008-0000-0000-c000-000000000046");
+
+	/**
+	 * Collects the entries of a "__properties_version1.0" stream.
+	 */
+	private static final class PropertiesStream {
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		private PropertiesStream(int headerSize) {
+			out.write(new byte[headerSize], 0, headerSize);
+		}
+
+		private PropertiesStream(byte[] header) {
+			out.write(header, 0, header.length);
+		}
+
+		private void fixed(int code, int mapiType, long value) {
+			final ByteBuffer entry = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			entry.putInt(code << 16 | mapiType).putInt(6).putLong(value);
+			out.write(entry.array(), 0, 16);
+		}
+
+		private void variable(int code, int mapiType, int size) {
+			final ByteBuffer entry = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			entry.putInt(code << 16 | mapiType).putInt(6).putInt(size).putInt(0);
+			out.write(entry.array(), 0, 16);
+		}
+
+		private void write(DirectoryEntry dir) throws IOException {
+			dir.createDocument("__properties_version1.0", new ByteArrayInputStream(out.toByteArray()));
+		}
+	}
+
+	private static void attachments(DirectoryEntry root) throws IOException {
+		final DirectoryEntry pdf = root.createDirectory("__attach_version1.0_#00000000");
+		unicode(pdf, 0x3707, "report.pdf");
+		unicode(pdf, 0x3704, "report.pdf");
+		unicode(pdf, 0x3703, ".pdf");
+		unicode(pdf, 0x370e, "application/pdf");
+		// the data is not stored contiguously, its first sectors fill the gap
+		// left by a deleted stream
+		final Entry gap = pdf.createDocument("gap", new ByteArrayInputStream(new byte[4096]));
+		final Entry spacer = pdf.createDocument("spacer", new ByteArrayInputStream(new byte[4096]));
+		gap.delete();
+		binary(pdf, 0x3701, pattern(20000, 1));
+		spacer.delete();
+		final PropertiesStream pdfProps = new PropertiesStream(8);
+		pdfProps.fixed(0x0e20, 0x03, 20000);
+		pdfProps.fixed(0x3705, 0x03, 1);
+		pdfProps.write(pdf);
+
+		final DirectoryEntry jpg = root.createDirectory("__attach_version1.0_#00000001");
+		unicode(jpg, 0x3707, "photo.jpg");
+		unicode(jpg, 0x3704, "photo.jpg");
+		unicode(jpg, 0x3703, ".jpg");
+		unicode(jpg, 0x370e, "image/jpeg");
+		binary(jpg, 0x3701, pattern(3000, 2));
+		final PropertiesStream jpgProps = new PropertiesStream(8);
+		jpgProps.fixed(0x0e20, 0x03, 3000);
+		jpgProps.write(jpg);
+
+		final DirectoryEntry msg = root.createDirectory("__attach_version1.0_#00000002");
+		unicode(msg, 0x3707, "Fwd.msg");
+		final PropertiesStream msgProps = new PropertiesStream(8);
+		msgProps.fixed(0x3705, 0x03, 5);
+		msgProps.write(msg);
+		message(msg.createDirectory("__substg1.0_3701000D"), false, "Embedded subject");
+	}
+
+	private static void binary(DirectoryEntry dir, int code, byte[] value) throws IOException {
+		dir.createDocument(String.format("__substg1.0_%04X0102", code), new ByteArrayInputStream(value));
+	}
+
+	private static long filetime(long millis) {
+		return (millis + 11644473600000L) * 10000L;
+	}
+
+	private static byte[] guid(UUID uuid) {
+		final long msb = uuid.getMostSignificantBits();
+		final ByteBuffer buffer = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt((int) (msb >>> 32)).putShort((short) (msb >>> 16)).putShort((short) msb);
+		buffer.order(ByteOrder.BIG_ENDIAN).putLong(uuid.getLeastSignificantBits());
+		return buffer.array();
+	}
+
+	/**
+	 * Writes the test file.
+	 *
+	 * @param args
+	 *            The path of the file to be written.
+	 * @throws IOException
+	 *             Thrown if the file could not be written.
+	 */
+	public static void main(String[] args) throws IOException {
+		try (POIFSFileSystem fs = new POIFSFileSystem()) {
+			message(fs.getRoot(), true, "Synthetic \u00fcnic\u00f6de subject");
+			try (FileOutputStream out = new FileOutputStream(args[0])) {
+				fs.writeFilesystem(out);
+			}
+		}
+	}
+
+	/**
+	 * Writes a message. The top level message and the attached message only
+	 * differ in their subject, the header size of their properties stream,
+	 * their code page and the 8 bit string decoded with it.
+	 */
+	private static void message(DirectoryEntry root, boolean top, String subject) throws IOException {
+		unicode(root, 0x0037, subject);
+		unicode(root, 0x001a, "IPM.Note");
+		unicode(root, 0x0c1f, "alice@example.com");
+		unicode(root, 0x0042, "Alice Sender");
+		unicode(root, 0x0e04, "Bob Receiver; Carol");
+		unicode(root, 0x0e03, "");
+		final StringBuilder body = new StringBuilder();
+		for (int i = 0; i < 400; i++) {
+			body.append("Line ").append(i).append(" of the body \u00e4\u00f6\u00fc \u20ac\r\n");
+		}
+		unicode(root, 0x1000, body.toString());
+		// the HTML body is binary, in the internet code page
+		binary(root, 0x1013, ("<html><body>caf\u00e9 " + body + "</body></html>").getBytes("windows-1252"));
+		unicode(root, 0x007d, "Received: by x\r\nFrom: Alice Sender <alice@example.com>\r\n"
+				+ "Date: Mon, 1 Jul 2019 10:00:00 +0000\r\n");
+		// the conversation topic is an 8 bit string in the message code page
+		if (top) {
+			string8(root, 0x0070, "\u041f\u0440\u0438\u0432\u0435\u0442 \u043c\u0438\u0440", "windows-1251");
+		} else {
+			string8(root, 0x0070, "Caf\u00e9", "windows-1252");
+		}
+		// 0x8001: PT_MV_UNICODE keywords, a length stream and one stream
+		// per value
+		root.createDocument("__substg1.0_8001101F", new ByteArrayInputStream(
+				ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(8).putInt(10).array()));
+		root.createDocument("__substg1.0_8001101F-00000000",
+				new ByteArrayInputStream("red\0".getBytes(StandardCharsets.UTF_16LE)));
+		root.createDocument("__substg1.0_8001101F-00000001",
+				new ByteArrayInputStream("blue\0".getBytes(StandardCharsets.UTF_16LE)));
+		// 0x8002: PT_MV_LONG, all values in a single stream
+		root.createDocument("__substg1.0_80021003", new ByteArrayInputStream(
+				ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN).putInt(1).putInt(2).putInt(3).array()));
+		unicode(root, 0x8003, "named@example.com");
+
+		final byte[] header = new byte[top ? 32 : 24];
+		final ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+		headerBuffer.putInt(8, 1).putInt(12, top ? 3 : 0).putInt(16, 1).putInt(20, top ? 3 : 0);
+		final PropertiesStream props = new PropertiesStream(header);
+		props.fixed(0x0039, 0x40, filetime(1561975200000L));
+		props.fixed(0x3007, 0x40, filetime(1561975100000L));
+		props.fixed(0x3008, 0x40, filetime(1561975300000L));
+		props.fixed(0x0e08, 0x03, 123456);
+		props.fixed(0x0e1f, 0x0b, 1);
+		props.fixed(0x3fde, 0x03, 1252);
+		props.fixed(0x3ffd, 0x03, top ? 1251 : 1252);
+		props.fixed(0x0017, 0x03, 1);
+		props.fixed(0x0e09, 0x14, 0x1122334455667788L);
+		props.variable(0x0037, 0x1f, subject.length() * 2 + 2);
+		props.write(root);
+
+		recipient(root, 0, "Bob Receiver", "bob@example.com", 1);
+		recipient(root, 1, "Carol", "carol@example.com", 2);
+
+		if (top) {
+			attachments(root);
+			namedProperties(root);
+		}
+	}
+
+	/**
+	 * Maps 0x8001 to "Keywords" in PS_PUBLIC_STRINGS, 0x8002 to 0x8085 in
+	 * PSETID_Common and 0x8003 to 0x8083 in PSETID_Address.
+	 */
+	private static void namedProperties(DirectoryEntry root) throws IOException {
+		final DirectoryEntry nameid = root.createDirectory("__nameid_version1.0");
+		final ByteArrayOutputStream guids = new ByteArrayOutputStream();
+		guids.write(guid(PSETID_COMMON));
+		guids.write(guid(PSETID_ADDRESS));
+		nameid.createDocument("__substg1.0_00020102", new ByteArrayInputStream(guids.toByteArray()));
+		final byte[] keywords = "Keywords".getBytes(StandardCharsets.UTF_16LE);
+		nameid.createDocument("__substg1.0_00040102", new ByteArrayInputStream(ByteBuffer
+				.allocate(4 + keywords.length).order(ByteOrder.LITTLE_ENDIAN).putInt(keywords.length).put(keywords)
+				.array()));
+		// every entry holds the id or string offset, the guid index shifted
+		// left by one combined with the string flag, and the property index
+		final ByteBuffer entries = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+		entries.putInt(0).putShort((short) (2 << 1 | 1)).putShort((short) 1);
+		entries.putInt(0x8085).putShort((short) (3 << 1)).putShort((short) 2);
+		entries.putInt(0x8083).putShort((short) (4 << 1)).putShort((short) 3);
+		nameid.createDocument("__substg1.0_00030102", new ByteArrayInputStream(entries.array()));
+	}
+
+	private static byte[] pattern(int length, int seed) {
+		final byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 31 + seed);
+		}
+		return bytes;
+	}
+
+	private static void recipient(DirectoryEntry root, int index, String name, String email, int type)
+			throws IOException {
+		final DirectoryEntry recipient = root.createDirectory(String.format("__recip_version1.0_#%08X", index));
+		unicode(recipient, 0x3001, name);
+		unicode(recipient, 0x3003, email);
+		if (index == 0) {
+			unicode(recipient, 0x39fe, email);
+		}
+		final PropertiesStream props = new PropertiesStream(8);
+		props.fixed(0x0c15, 0x03, type);
+		props.write(recipient);
+	}
+
+	private static void string8(DirectoryEntry dir, int code, String value, String charset) throws IOException {
+		dir.createDocument(String.format("__substg1.0_%04X001E", code),
+				new ByteArrayInputStream(value.getBytes(charset)));
+	}
+
+	private static void unicode(DirectoryEntry dir, int code, String value) throws IOException {
+		dir.createDocument(String.format("__substg1.0_%04X001F", code),
+				new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_16LE)));
+	}
+}